@@ -0,0 +1,37 @@
+package org.nhindirect.config.manager.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nhindirect.config.manager.CertificateFiles;
+
+/**
+ * Loads the certificate corpus a benchmark runs against.  The corpus is a directory of DER or PEM encoded certificate files passed
+ * with the certDir benchmark parameter, e.g. -p certDir=/path/to/certs.
+ */
+class BenchmarkCorpus
+{
+	private BenchmarkCorpus()
+	{
+		
+	}
+	
+	static List<X509Certificate> load(String certDir) throws IOException, CertificateException
+	{
+		if (certDir == null || certDir.isEmpty())
+			throw new IllegalArgumentException("The certDir parameter is required, e.g. -p certDir=/path/to/certs");
+		
+		final List<X509Certificate> retVal = new ArrayList<X509Certificate>();
+		for (File file : CertificateFiles.listFiles(new File(certDir)))
+			retVal.addAll(CertificateFiles.readCertificates(file));
+		
+		if (retVal.isEmpty())
+			throw new IllegalArgumentException("No certificates found in " + certDir);
+		
+		return retVal;
+	}
+}
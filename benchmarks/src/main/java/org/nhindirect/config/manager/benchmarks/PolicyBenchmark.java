@@ -0,0 +1,91 @@
+package org.nhindirect.config.manager.benchmarks;
+
+import java.io.File;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.nhindirect.config.manager.PolicyParsers;
+import org.nhindirect.policy.PolicyExpression;
+import org.nhindirect.policy.PolicyFilter;
+import org.nhindirect.policy.PolicyFilterFactory;
+import org.nhindirect.policy.PolicyLexicon;
+import org.nhindirect.policy.PolicyProcessException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of evaluating a policy definition against a certificate corpus with the agent's policy filter.  The policy is
+ * compiled with the same lexicon parsers as ImportPolicy and BenchPolicy.  Each operation evaluates one certificate, cycling through
+ * the corpus, so the score is the time per evaluation; add -prof gc for the allocations per evaluation.  Several definitions can be
+ * compared in one run by passing a comma separated list of files.  The match rate of a definition is reported by BenchPolicy.
+ * <p>
+ * java -jar target/benchmarks.jar PolicyBenchmark -p policyFile=/path/a.txt,/path/b.txt -p certDir=/path/to/certs -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PolicyBenchmark
+{
+	@Param("")
+	public String policyFile;
+	
+	@Param("AUTO")
+	public String lexicon;
+	
+	@Param("")
+	public String certDir;
+	
+	protected PolicyExpression expression;
+	
+	protected PolicyFilter filter;
+	
+	protected X509Certificate[] certs;
+	
+	protected int next;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		if (policyFile == null || policyFile.isEmpty())
+			throw new IllegalArgumentException("The policyFile parameter is required, e.g. -p policyFile=/path/to/policy.txt");
+		
+		final byte[] policyData = FileUtils.readFileToByteArray(new File(policyFile));
+		final PolicyLexicon lex = lexicon.equalsIgnoreCase("AUTO") ? PolicyParsers.detectLexicon(policyFile, policyData) : PolicyLexicon.valueOf(lexicon);
+		expression = PolicyParsers.parse(policyData, lex);
+		filter = PolicyFilterFactory.getInstance();
+		
+		final List<X509Certificate> corpus = BenchmarkCorpus.load(certDir);
+		certs = corpus.toArray(new X509Certificate[corpus.size()]);
+	}
+	
+	@Benchmark
+	public boolean evaluate()
+	{
+		final X509Certificate cert = certs[next];
+		next = (next + 1 == certs.length) ? 0 : next + 1;
+		
+		try
+		{
+			return filter.isCompliant(cert, expression);
+		}
+		catch (PolicyProcessException e)
+		{
+			// a certificate missing a required field is not compliant
+			return false;
+		}
+	}
+}
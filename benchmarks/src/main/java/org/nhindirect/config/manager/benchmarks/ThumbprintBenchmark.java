@@ -0,0 +1,67 @@
+package org.nhindirect.config.manager.benchmarks;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nhindirect.config.manager.ThumbprintService;
+import org.nhindirect.stagent.cert.Thumbprint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the thumbprints computed through {@link Thumbprint#toThumbprint(X509Certificate)} with those of {@link ThumbprintService}
+ * over a certificate corpus.  Each operation thumbprints the whole corpus; divide by the corpus size for the cost per certificate.
+ * <p>
+ * java -jar target/benchmarks.jar ThumbprintBenchmark -p certDir=/path/to/certs -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThumbprintBenchmark
+{
+	@Param("")
+	public String certDir;
+	
+	protected List<X509Certificate> certs;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		certs = BenchmarkCorpus.load(certDir);
+	}
+	
+	@Benchmark
+	public void legacyThumbprint(Blackhole bh) throws Exception
+	{
+		for (X509Certificate cert : certs)
+			bh.consume(Thumbprint.toThumbprint(cert).toString());
+	}
+	
+	@Benchmark
+	public void serviceThumbprint(Blackhole bh)
+	{
+		final ThumbprintService service = ThumbprintService.getInstance();
+		for (X509Certificate cert : certs)
+			bh.consume(service.getThumbprint(cert));
+	}
+	
+	@Benchmark
+	public List<String> serviceThumbprints()
+	{
+		return ThumbprintService.getInstance().getThumbprints(certs, ThumbprintService.Algorithm.SHA1);
+	}
+}
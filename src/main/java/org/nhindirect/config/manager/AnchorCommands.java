@@ -1,10 +1,33 @@
 package org.nhindirect.config.manager;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.nhind.config.rest.AnchorService;
@@ -38,6 +61,32 @@ public class AnchorCommands
             "\r\n  owner thumbprint " +
             "\r\n\t owner: domain owner of the anchor" + 
             "\r\n\t thumbprint: thumbprint of the anchor";
+    
+    private static final String IMPORT_ANCHORS_USAGE = "Imports trust anchors from a PKCS7 bundle, a PEM bundle, or a directory of certificate files and associates them to one or more domains.  " +
+    		"Anchors that a domain already has are skipped." +
+            "\r\n  anchors domainNames incoming outgoing [parallel]" +
+            "\r\n\t anchors: Fully qualified path of a .p7b file, a PEM file, or a directory of DER, PEM, or .p7b files.  " +
+            "Place the path in quotes (\"\") if there are spaces in the path or name." +
+            "\r\n\t domainNames: Comma separated list of the domains that the anchors will be associated with" +
+            "\r\n\t incoming: Indicates if the anchors should be used to trust incoming messages.  Valid values are true or false" +
+            "\r\n\t outgoing: Indicates if the anchors should be used to trust outgoing messages.  Valid values are true or false" +
+            "\r\n\t [parallel]: Optional.  Maximum number of concurrent requests to the configuration service.  Defaults to " + ParallelTasks.DEFAULT_PARALLELISM + ".";
+	
+    private static final String EXPORT_ANCHORS_USAGE = "Exports all anchors of a domain, or all anchors in the system, to a single file.  " +
+    		"Anchors are written once per thumbprint in thumbprint order so that exports from different systems can be compared directly." +
+            "\r\n  file [owner]" +
+            "\r\n\t file: Fully qualified path and file name of the export file.  The format is determined by the extension: " +
+            ".p7b or .p7c for a PKCS7 bundle, .zip for a zip of DER files, or anything else for a PEM bundle." +
+            "\r\n\t [owner]: Optional.  Domain owner of the anchors to export.  Defaults to all anchors.";
+	
+    private static final String APPLY_ANCHORS_TO_DOMAINS_USAGE = "Associates a set of trust anchors with every domain in a list.  Anchors that a domain already has are skipped." +
+            "\r\n  anchors domainListFile incoming outgoing [parallel]" +
+            "\r\n\t anchors: Fully qualified path of a directory of DER, PEM, or .p7b files, or of a single bundle file.  " +
+            "Place the path in quotes (\"\") if there are spaces in the path or name." +
+            "\r\n\t domainListFile: Fully qualified path and file name of a file with one domain name per line.  Blank lines and lines starting with # are ignored." +
+            "\r\n\t incoming: Indicates if the anchors should be used to trust incoming messages.  Valid values are true or false" +
+            "\r\n\t outgoing: Indicates if the anchors should be used to trust outgoing messages.  Valid values are true or false" +
+            "\r\n\t [parallel]: Optional.  Maximum number of concurrent requests to the configuration service.  Defaults to " + ParallelTasks.DEFAULT_PARALLELISM + ".";
 	
 	protected AnchorService anchorService;
 	protected DomainService domainService;
@@ -120,6 +169,285 @@ public class AnchorCommands
 	}
 
 	
+	@Command(name = "ImportAnchors", usage = IMPORT_ANCHORS_USAGE)
+    public void importAnchors(String[] args)
+	{
+		final String location = StringArrayUtil.getRequiredValue(args, 0);
+		final String domainNames = StringArrayUtil.getRequiredValue(args, 1);
+		final boolean incoming = Boolean.parseBoolean(StringArrayUtil.getRequiredValue(args, 2));
+		final boolean outgoing = Boolean.parseBoolean(StringArrayUtil.getRequiredValue(args, 3));
+		final int parallel = ParallelTasks.parseParallelism(StringArrayUtil.getOptionalValue(args, 4, ""));
+		
+		final List<Domain> domains;
+		try
+		{
+			domains = lookupDomains(Arrays.asList(domainNames.split(",")));
+			if (domains == null)
+				return;
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup domains: " + e.getMessage());
+			return;
+		}
+		
+		final Map<String, X509Certificate> anchors = readAnchors(new File(location));
+		if (anchors == null)
+			return;
+		
+		System.out.println("Read " + anchors.size() + " distinct anchors from " + location);
+		
+		applyAnchors(anchors, domains, incoming, outgoing, parallel);
+	}
+	
+	@Command(name = "ApplyAnchorsToDomains", usage = APPLY_ANCHORS_TO_DOMAINS_USAGE)
+    public void applyAnchorsToDomains(String[] args)
+	{
+		final String location = StringArrayUtil.getRequiredValue(args, 0);
+		final String domainListFile = StringArrayUtil.getRequiredValue(args, 1);
+		final boolean incoming = Boolean.parseBoolean(StringArrayUtil.getRequiredValue(args, 2));
+		final boolean outgoing = Boolean.parseBoolean(StringArrayUtil.getRequiredValue(args, 3));
+		final int parallel = ParallelTasks.parseParallelism(StringArrayUtil.getOptionalValue(args, 4, ""));
+		
+		final List<String> domainNames = new ArrayList<String>();
+		try
+		{
+			for (String line : Files.readAllLines(new File(domainListFile).toPath(), StandardCharsets.UTF_8))
+			{
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#"))
+					domainNames.add(line);
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error reading file " + domainListFile + " : " + e.getMessage());
+			return;
+		}
+		
+		final List<Domain> domains;
+		try
+		{
+			domains = lookupDomains(domainNames);
+			if (domains == null)
+				return;
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup domains: " + e.getMessage());
+			return;
+		}
+		
+		final Map<String, X509Certificate> anchors = readAnchors(new File(location));
+		if (anchors == null)
+			return;
+		
+		System.out.println("Applying " + anchors.size() + " anchors to " + domains.size() + " domains");
+		
+		applyAnchors(anchors, domains, incoming, outgoing, parallel);
+	}
+	
+	/**
+	 * Validates a list of domain names against a single listing of the domains in the system.  Domains that do not exist are
+	 * reported and skipped so that the remaining domains are still processed.
+	 * @return The existing domains in the order requested, or null if none of the domains exist.
+	 */
+	protected List<Domain> lookupDomains(Collection<String> domainNames) throws Exception
+	{
+		final Map<String, Domain> existing = new HashMap<String, Domain>();
+		final Collection<Domain> allDomains = domainService.searchDomains("", null);
+		if (allDomains != null)
+			for (Domain domain : allDomains)
+				existing.put(domain.getDomainName().toLowerCase(), domain);
+		
+		final Map<String, Domain> retVal = new LinkedHashMap<String, Domain>();
+		final List<String> missing = new ArrayList<String>();
+		for (String domainName : domainNames)
+		{
+			final String key = domainName.trim().toLowerCase();
+			if (key.isEmpty())
+				continue;
+			
+			final Domain domain = existing.get(key);
+			if (domain == null)
+				missing.add(domainName.trim());
+			else
+				retVal.put(key, domain);
+		}
+		
+		if (!missing.isEmpty())
+			System.out.println("The following domains do not exist in the system and are skipped: " + String.join(", ", missing));
+		
+		if (retVal.isEmpty())
+		{
+			System.out.println(missing.isEmpty() ? "No domains specified" : "None of the specified domains exist in the system");
+			return null;
+		}
+		
+		return new ArrayList<Domain>(retVal.values());
+	}
+	
+	/**
+	 * Reads anchors from a file or the files of a directory in parallel.
+	 * @return The distinct anchors keyed by thumbprint, or null if any file could not be read.
+	 */
+	protected Map<String, X509Certificate> readAnchors(File location)
+	{
+		final List<File> files;
+		try
+		{
+			files = CertificateFiles.listFiles(location);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error reading " + location + " : " + e.getMessage());
+			return null;
+		}
+		
+		final List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		boolean failed = false;
+		for (ParallelTasks.Outcome<File, List<X509Certificate>> outcome : 
+			ParallelTasks.invokeAll(files, Runtime.getRuntime().availableProcessors(), file -> CertificateFiles.readCertificates(file)))
+		{
+			if (outcome.isSuccess())
+				certs.addAll(outcome.getResult());
+			else
+			{
+				failed = true;
+				System.out.println("Error reading file " + outcome.getItem().getAbsolutePath() + " : " + outcome.getError().getMessage());
+			}
+		}
+		
+		if (failed)
+		{
+			System.out.println("No anchors imported.");
+			return null;
+		}
+		
+		final List<String> thumbprints = ThumbprintService.getInstance().getThumbprints(certs, ThumbprintService.Algorithm.SHA1);
+		final Map<String, X509Certificate> retVal = new LinkedHashMap<String, X509Certificate>();
+		for (int i = 0; i < certs.size(); ++i)
+			retVal.putIfAbsent(thumbprints.get(i), certs.get(i));
+		
+		return retVal;
+	}
+	
+	/**
+	 * Associates anchors to domains, skipping anchors that a domain already has.  The existing anchors of the domains are fetched
+	 * concurrently, one request per domain, and the missing anchors are added concurrently.  A progress line is printed as soon as
+	 * all adds of a domain have completed, and a failure for one domain does not stop the others.
+	 */
+	protected void applyAnchors(Map<String, X509Certificate> anchors, List<Domain> domains, boolean incoming, boolean outgoing, int parallel)
+	{
+		final List<ParallelTasks.Outcome<Domain, Set<String>>> existing = 
+				ParallelTasks.invokeAll(domains, parallel, domain -> getAnchorThumbprints(domain.getDomainName()));
+		
+		final Map<Domain, DomainProgress> progress = new LinkedHashMap<Domain, DomainProgress>();
+		final List<Map.Entry<Domain, X509Certificate>> adds = new ArrayList<Map.Entry<Domain, X509Certificate>>();
+		final List<String> failedDomains = new ArrayList<String>();
+		for (ParallelTasks.Outcome<Domain, Set<String>> outcome : existing)
+		{
+			if (!outcome.isSuccess())
+			{
+				failedDomains.add(outcome.getItem().getDomainName());
+				System.out.println("Failed to lookup anchors for domain " + outcome.getItem().getDomainName() + " : " + outcome.getError().getMessage());
+				continue;
+			}
+			
+			final DomainProgress domainProgress = new DomainProgress();
+			progress.put(outcome.getItem(), domainProgress);
+			for (Map.Entry<String, X509Certificate> anchor : anchors.entrySet())
+			{
+				if (outcome.getResult().contains(anchor.getKey()))
+					++domainProgress.present;
+				else
+					adds.add(new AbstractMap.SimpleImmutableEntry<Domain, X509Certificate>(outcome.getItem(), anchor.getValue()));
+			}
+			domainProgress.remaining.set(anchors.size() - domainProgress.present);
+		}
+		
+		final AtomicInteger completedDomains = new AtomicInteger();
+		for (Map.Entry<Domain, DomainProgress> entry : progress.entrySet())
+			if (entry.getValue().remaining.get() == 0)
+				printProgress(entry.getKey(), entry.getValue(), completedDomains.incrementAndGet(), progress.size());
+		
+		for (ParallelTasks.Outcome<Map.Entry<Domain, X509Certificate>, Void> outcome : 
+			ParallelTasks.<Map.Entry<Domain, X509Certificate>, Void>invokeAll(adds, parallel, add ->
+			{
+				final DomainProgress domainProgress = progress.get(add.getKey());
+				try
+				{
+					final Anchor anchor = new Anchor();
+					anchor.setCertificateData(add.getValue().getEncoded());
+					anchor.setIncoming(incoming);
+					anchor.setOutgoing(outgoing);
+					anchor.setOwner(add.getKey().getDomainName());
+					anchor.setStatus(EntityStatus.ENABLED);
+					
+					anchorService.addAnchor(anchor);
+					domainProgress.added.incrementAndGet();
+				}
+				catch (Exception e)
+				{
+					domainProgress.failed.incrementAndGet();
+					throw e;
+				}
+				finally
+				{
+					if (domainProgress.remaining.decrementAndGet() == 0)
+						printProgress(add.getKey(), domainProgress, completedDomains.incrementAndGet(), progress.size());
+				}
+				return null;
+			}))
+		{
+			if (!outcome.isSuccess())
+				System.out.println("Error importing anchor " + outcome.getItem().getValue().getSubjectX500Principal().getName() + 
+						" for domain " + outcome.getItem().getKey().getDomainName() + " : " + outcome.getError().getMessage());
+		}
+		
+		int added = 0;
+		int present = 0;
+		int failed = 0;
+		for (Map.Entry<Domain, DomainProgress> entry : progress.entrySet())
+		{
+			added += entry.getValue().added.get();
+			present += entry.getValue().present;
+			failed += entry.getValue().failed.get();
+			if (entry.getValue().failed.get() > 0)
+				failedDomains.add(entry.getKey().getDomainName());
+		}
+		
+		System.out.println("Imported " + added + " anchors, skipped " + present + " already present, " + failed + " failed.");
+		if (!failedDomains.isEmpty())
+			System.out.println("Domains with failures: " + String.join(", ", failedDomains));
+	}
+	
+	protected static void printProgress(Domain domain, DomainProgress progress, int completed, int total)
+	{
+		System.out.println("[" + completed + "/" + total + "] " + domain.getDomainName() + ": " + progress.added.get() + " added, " + 
+				progress.present + " already present" + ((progress.failed.get() > 0) ? ", " + progress.failed.get() + " failed" : ""));
+	}
+	
+	protected static class DomainProgress
+	{
+		protected int present;
+		protected final AtomicInteger remaining = new AtomicInteger();
+		protected final AtomicInteger added = new AtomicInteger();
+		protected final AtomicInteger failed = new AtomicInteger();
+	}
+	
+	protected Set<String> getAnchorThumbprints(String owner) throws Exception
+	{
+		final Set<String> retVal = new HashSet<String>();
+		
+		final Collection<Anchor> anchors = anchorService.getAnchorsForOwner(owner, true, true, "");
+		if (anchors != null)
+			for (Anchor anchor : anchors)
+				retVal.add(ThumbprintService.getInstance().getThumbprint(CertUtils.toX509Certificate(anchor.getCertificateData())));
+		
+		return retVal;
+	}
+	
 	@Command(name = "ExportAnchor", usage = EXPORT_ANCHOR_USAGE)
     public void exportAnchor(String[] args)
 	{	
@@ -167,6 +495,108 @@ public class AnchorCommands
 		}
 	}
 
+	@Command(name = "ExportAnchors", usage = EXPORT_ANCHORS_USAGE)
+    public void exportAnchors(String[] args)
+	{	
+		final String fileLoc = StringArrayUtil.getRequiredValue(args, 0);
+		final String owner = StringArrayUtil.getOptionalValue(args, 1, "");
+		
+		final Collection<Anchor> anchors;
+		try
+		{
+			anchors = owner.isEmpty() ? anchorService.getAnchors() : anchorService.getAnchorsForOwner(owner, true, true, "");
+			if (anchors == null || anchors.size() == 0)
+			{
+				System.out.println("No anchors found");
+				return;
+			}
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to get anchors: " + e.getMessage());
+			return;
+		}
+		
+		// decode in parallel and order by thumbprint, which also drops the same anchor shared by several owners
+		final List<X509Certificate> decoded = anchors.parallelStream().map(anchor ->
+		{
+			try
+			{
+				return CertUtils.toX509Certificate(anchor.getCertificateData());
+			}
+			catch (Exception e)
+			{
+				System.out.println("Skipping anchor " + anchor.getId() + " : " + e.getMessage());
+				return null;
+			}
+		}).collect(Collectors.toList());
+		
+		final Map<String, X509Certificate> sorted = new TreeMap<String, X509Certificate>();
+		for (X509Certificate cert : decoded)
+			if (cert != null)
+				sorted.putIfAbsent(ThumbprintService.getInstance().getThumbprint(cert), cert);
+		
+		final File file = new File(fileLoc);
+		final String name = file.getName().toLowerCase();
+		try
+		{
+			if (name.endsWith(".p7b") || name.endsWith(".p7c"))
+				writePKCS7(sorted, file);
+			else if (name.endsWith(".zip"))
+				writeZip(sorted, file);
+			else
+				writePEM(sorted, file);
+			
+			System.out.println("Exported " + sorted.size() + " anchors to " + file.getAbsolutePath());
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to write anchors to file " + file.getAbsolutePath() + " : " + e.getMessage());
+		}
+	}
+	
+	protected static void writePKCS7(Map<String, X509Certificate> anchors, File file) throws Exception
+	{
+		final byte[] encoded = CertificateFactory.getInstance("X.509").generateCertPath(new ArrayList<X509Certificate>(anchors.values())).getEncoded("PKCS7");
+		
+		try (OutputStream outStr = new BufferedOutputStream(new FileOutputStream(file)))
+		{
+			outStr.write(encoded);
+		}
+	}
+	
+	protected static void writePEM(Map<String, X509Certificate> anchors, File file) throws Exception
+	{
+		final Base64.Encoder encoder = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII));
+		
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII)))
+		{
+			for (X509Certificate cert : anchors.values())
+			{
+				writer.write("-----BEGIN CERTIFICATE-----\n");
+				writer.write(encoder.encodeToString(cert.getEncoded()));
+				writer.write("\n-----END CERTIFICATE-----\n");
+			}
+		}
+	}
+	
+	protected static void writeZip(Map<String, X509Certificate> anchors, File file) throws Exception
+	{
+		try (ZipOutputStream zipStr = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+		{
+			for (Map.Entry<String, X509Certificate> anchor : anchors.entrySet())
+			{
+				// the thumbprint keeps entry names unique when anchors share a subject
+				final ZipEntry entry = new ZipEntry(CryptoExtensions.getSubjectAddress(anchor.getValue()) + "_" + anchor.getKey() + ".der");
+				entry.setTime(anchor.getValue().getNotBefore().getTime());
+				
+				zipStr.putNextEntry(entry);
+				zipStr.write(anchor.getValue().getEncoded());
+				zipStr.closeEntry();
+			}
+		}
+	}
+
 	@Command(name = "DeleteAnchor", usage = DELETE_ANCHOR_USAGE)
     public void deleteUnmagedCert(String[] args)
 	{
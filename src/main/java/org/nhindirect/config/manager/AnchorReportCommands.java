@@ -0,0 +1,305 @@
+package org.nhindirect.config.manager;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.nhind.config.rest.AnchorService;
+import org.nhind.config.rest.DomainService;
+import org.nhind.config.rest.TrustBundleService;
+import org.nhindirect.common.tooling.Command;
+import org.nhindirect.common.tooling.StringArrayUtil;
+import org.nhindirect.config.model.Anchor;
+import org.nhindirect.config.model.Domain;
+import org.nhindirect.config.model.TrustBundle;
+import org.nhindirect.config.model.TrustBundleAnchor;
+import org.nhindirect.config.model.TrustBundleDomainReltn;
+import org.nhindirect.config.model.utils.CertUtils;
+
+public class AnchorReportCommands
+{
+    private static final String ANCHOR_REDUNDANCY_REPORT_USAGE = "Reports trust anchors that are configured more than once.  Lists anchors stored more than once for the same domain, " +
+    		"anchors that are not used by any domain, and domain anchors that are also provided to the domain by an associated trust bundle." +
+            "\r\n  [parallel]" +
+            "\r\n\t [parallel]: Optional.  Maximum number of concurrent requests to the configuration service.  Defaults to " + ParallelTasks.DEFAULT_PARALLELISM + ".";
+
+	protected AnchorService anchorService;
+	protected DomainService domainService;
+	protected TrustBundleService bundleService;
+
+	/**
+	 * A single place where an anchor is configured: either a domain anchor or an anchor of a trust bundle.
+	 */
+	protected static class AnchorUsage
+	{
+		protected final String domain;
+		protected final String bundle;
+		protected final boolean incoming;
+		protected final boolean outgoing;
+		protected final byte[] data;
+
+		protected AnchorUsage(String domain, String bundle, boolean incoming, boolean outgoing, byte[] data)
+		{
+			this.domain = domain;
+			this.bundle = bundle;
+			this.incoming = incoming;
+			this.outgoing = outgoing;
+			this.data = data;
+		}
+
+		protected boolean isBundle()
+		{
+			return bundle != null;
+		}
+
+		protected String getSource()
+		{
+			return isBundle() ? "bundle " + bundle : "domain anchor";
+		}
+
+		protected String getDirection()
+		{
+			return (incoming && outgoing) ? "in/out" : incoming ? "in" : outgoing ? "out" : "none";
+		}
+	}
+
+	public AnchorReportCommands(AnchorService anchorService, DomainService domainService, TrustBundleService bundleService)
+	{
+		this.anchorService = anchorService;
+		this.domainService = domainService;
+		this.bundleService = bundleService;
+	}
+
+	@Command(name = "AnchorRedundancyReport", usage = ANCHOR_REDUNDANCY_REPORT_USAGE)
+    public void anchorRedundancyReport(String[] args)
+	{
+		final int parallel = ParallelTasks.parseParallelism(StringArrayUtil.getOptionalValue(args, 0, ""));
+
+		// the anchor, bundle, and domain listings are independent of each other
+		final Collection<Anchor> anchors;
+		final Collection<TrustBundle> bundles;
+		final Collection<Domain> domains;
+		final ExecutorService executor = Executors.newFixedThreadPool(3);
+		try
+		{
+			final Future<Collection<Anchor>> anchorsFuture = executor.submit(() -> anchorService.getAnchors());
+			final Future<Collection<TrustBundle>> bundlesFuture = executor.submit(() -> bundleService.getTrustBundles(true));
+			final Future<Collection<Domain>> domainsFuture = executor.submit(() -> domainService.searchDomains("", null));
+
+			anchors = ParallelTasks.nullToEmpty(anchorsFuture.get());
+			bundles = ParallelTasks.nullToEmpty(bundlesFuture.get());
+			domains = ParallelTasks.nullToEmpty(domainsFuture.get());
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup anchors, bundles, and domains: " + ((e.getCause() != null) ? e.getCause().getMessage() : e.getMessage()));
+			return;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		final Map<String, Collection<TrustBundleDomainReltn>> reltns = new LinkedHashMap<String, Collection<TrustBundleDomainReltn>>();
+		final List<String> failedDomains = new ArrayList<String>();
+		for (ParallelTasks.Outcome<Domain, Collection<TrustBundleDomainReltn>> outcome :
+			ParallelTasks.invokeAll(domains, parallel, domain -> bundleService.getTrustBundlesByDomain(domain.getDomainName(), false)))
+		{
+			if (outcome.isSuccess())
+				reltns.put(outcome.getItem().getDomainName(), ParallelTasks.nullToEmpty(outcome.getResult()));
+			else
+			{
+				failedDomains.add(outcome.getItem().getDomainName());
+				System.out.println("Failed to lookup bundles for domain " + outcome.getItem().getDomainName() + " : " + outcome.getError().getMessage());
+			}
+		}
+
+		final Set<String> domainNames = new HashSet<String>();
+		for (Domain domain : domains)
+			domainNames.add(domain.getDomainName().toLowerCase(Locale.ENGLISH));
+
+		final Map<String, List<AnchorUsage>> usages = buildUsages(anchors, bundles, reltns);
+
+		int anchorRefs = 0;
+		int sharedAnchors = 0;
+		final Map<String, List<AnchorUsage>> duplicates = new TreeMap<String, List<AnchorUsage>>();
+		final Map<String, List<AnchorUsage>> unused = new TreeMap<String, List<AnchorUsage>>();
+		final Map<String, List<AnchorUsage>> shadowed = new TreeMap<String, List<AnchorUsage>>();
+		int undetermined = 0;
+		for (Map.Entry<String, List<AnchorUsage>> entry : usages.entrySet())
+		{
+			final Map<String, List<AnchorUsage>> byDomain = new HashMap<String, List<AnchorUsage>>();
+			final List<AnchorUsage> noDomain = new ArrayList<AnchorUsage>();
+			for (AnchorUsage usage : entry.getValue())
+			{
+				++anchorRefs;
+				if (usage.domain == null || (!usage.isBundle() && !domainNames.contains(usage.domain.toLowerCase(Locale.ENGLISH))))
+					noDomain.add(usage);
+				else
+					byDomain.computeIfAbsent(usage.domain.toLowerCase(Locale.ENGLISH), k -> new ArrayList<AnchorUsage>()).add(usage);
+			}
+
+			// an anchor is only unused if no domain uses it through any anchor record or bundle, and a bundle without known
+			// associations may be associated with a domain whose associations could not be read
+			if (byDomain.isEmpty() && !noDomain.isEmpty())
+			{
+				if (!failedDomains.isEmpty() && noDomain.stream().anyMatch(AnchorUsage::isBundle))
+					++undetermined;
+				else
+					unused.put(entry.getKey(), noDomain);
+			}
+
+			if (byDomain.size() > 1)
+				++sharedAnchors;
+
+			for (List<AnchorUsage> domainUsages : byDomain.values())
+			{
+				final List<AnchorUsage> direct = new ArrayList<AnchorUsage>();
+				boolean bundleIncoming = false;
+				boolean bundleOutgoing = false;
+				for (AnchorUsage usage : domainUsages)
+				{
+					if (usage.isBundle())
+					{
+						bundleIncoming |= usage.incoming;
+						bundleOutgoing |= usage.outgoing;
+					}
+					else
+						direct.add(usage);
+				}
+
+				if (direct.size() > 1)
+					duplicates.computeIfAbsent(entry.getKey(), k -> new ArrayList<AnchorUsage>()).addAll(direct);
+
+				// a domain anchor is shadowed when the domain's bundles already trust it in every direction the anchor is used for
+				for (AnchorUsage usage : direct)
+				{
+					if ((bundleIncoming || bundleOutgoing) && (!usage.incoming || bundleIncoming) && (!usage.outgoing || bundleOutgoing))
+					{
+						final List<AnchorUsage> shadows = shadowed.computeIfAbsent(entry.getKey(), k -> new ArrayList<AnchorUsage>());
+						shadows.add(usage);
+						for (AnchorUsage bundleUsage : domainUsages)
+							if (bundleUsage.isBundle())
+								shadows.add(bundleUsage);
+					}
+				}
+			}
+		}
+
+		System.out.println("Distinct anchors: " + usages.size() + ", anchor references: " + anchorRefs + ", anchors used by more than one domain: " + sharedAnchors);
+		System.out.println();
+		printSection("Anchors stored more than once for the same domain", duplicates);
+		printSection("Anchors not used by any domain", unused);
+		printSection("Domain anchors shadowed by trust bundle membership", shadowed);
+
+		if (!failedDomains.isEmpty())
+		{
+			System.out.println("ERROR: Bundle associations could not be read for domains: " + String.join(", ", failedDomains));
+			if (undetermined > 0)
+				System.out.println("ERROR: " + undetermined + " anchors of bundles without known domain associations may be used by these domains " +
+						"and are not reported as unused.");
+		}
+	}
+
+	/**
+	 * Builds the thumbprint to usage multimap from the domain anchors and the anchors of every bundle, once for each domain the
+	 * bundle is associated with.  Bundles that are not associated with any domain produce usages without a domain.
+	 */
+	protected static Map<String, List<AnchorUsage>> buildUsages(Collection<Anchor> anchors, Collection<TrustBundle> bundles,
+			Map<String, Collection<TrustBundleDomainReltn>> reltns)
+	{
+		final Map<String, List<TrustBundleDomainReltn>> reltnsByBundle = new HashMap<String, List<TrustBundleDomainReltn>>();
+		for (Collection<TrustBundleDomainReltn> domainReltns : reltns.values())
+			for (TrustBundleDomainReltn reltn : domainReltns)
+				reltnsByBundle.computeIfAbsent(reltn.getTrustBundle().getBundleName(), k -> new ArrayList<TrustBundleDomainReltn>()).add(reltn);
+
+		final ThumbprintService thumbprints = ThumbprintService.getInstance();
+		final Map<String, List<AnchorUsage>> retVal = new HashMap<String, List<AnchorUsage>>();
+		for (Anchor anchor : anchors)
+			retVal.computeIfAbsent(getAnchorThumbprint(anchor), k -> new ArrayList<AnchorUsage>())
+				.add(new AnchorUsage(anchor.getOwner(), null, anchor.isIncoming(), anchor.isOutgoing(), anchor.getCertificateData()));
+
+		for (TrustBundle bundle : bundles)
+		{
+			if (bundle.getTrustBundleAnchors() == null)
+				continue;
+
+			final List<TrustBundleDomainReltn> bundleReltns = reltnsByBundle.getOrDefault(bundle.getBundleName(),
+					Collections.<TrustBundleDomainReltn>emptyList());
+
+			for (TrustBundleAnchor bundleAnchor : bundle.getTrustBundleAnchors())
+			{
+				final List<AnchorUsage> anchorUsages =
+						retVal.computeIfAbsent(thumbprints.getThumbprint(bundleAnchor.getAnchorData()), k -> new ArrayList<AnchorUsage>());
+
+				if (bundleReltns.isEmpty())
+					anchorUsages.add(new AnchorUsage(null, bundle.getBundleName(), false, false, bundleAnchor.getAnchorData()));
+
+				for (TrustBundleDomainReltn reltn : bundleReltns)
+					anchorUsages.add(new AnchorUsage(reltn.getDomain().getDomainName(), bundle.getBundleName(),
+							reltn.isIncoming(), reltn.isOutgoing(), bundleAnchor.getAnchorData()));
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Gets the thumbprint of a domain anchor from its DER encoding.  Domain anchors are stored as imported and may be PEM encoded,
+	 * while bundle anchors are always DER, so hashing the stored bytes would give the same certificate two different thumbprints.
+	 */
+	protected static String getAnchorThumbprint(Anchor anchor)
+	{
+		try
+		{
+			return ThumbprintService.getInstance().getThumbprint(CertUtils.toX509Certificate(anchor.getCertificateData()));
+		}
+		catch (Exception e)
+		{
+			// undecodable anchors cannot match a bundle anchor and are keyed by their stored bytes
+			return ThumbprintService.getInstance().getThumbprint(anchor.getCertificateData());
+		}
+	}
+
+	protected static void printSection(String title, Map<String, List<AnchorUsage>> entries)
+	{
+		System.out.println(title + " (" + entries.size() + ")");
+		if (entries.isEmpty())
+			System.out.println("\t<none>");
+
+		for (Map.Entry<String, List<AnchorUsage>> entry : entries.entrySet())
+		{
+			System.out.println("\t" + entry.getKey() + "  " + getSubject(entry.getValue().get(0).data));
+			for (AnchorUsage usage : entry.getValue())
+				System.out.println(String.format("\t\t%-40s %-40s %s", (usage.domain == null) ? "<no domain>" : usage.domain,
+						usage.getSource(), usage.getDirection()));
+		}
+
+		System.out.println();
+	}
+
+	protected static String getSubject(byte[] data)
+	{
+		try
+		{
+			final X509Certificate cert = CertUtils.toX509Certificate(data);
+			return cert.getSubjectX500Principal().getName();
+		}
+		catch (Exception e)
+		{
+			return "ERROR: " + e.getMessage();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package org.nhindirect.config.manager;
+
+import java.security.cert.X509Certificate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+
+import org.nhindirect.config.model.TrustBundle;
+import org.nhindirect.config.model.TrustBundleAnchor;
+import org.nhindirect.config.model.TrustBundleDomainReltn;
+
+/**
+ * Inverted index from anchor thumbprint and subject common name to the trust bundles that contain the anchor and the domains
+ * those bundles are associated with.
+ * <p>
+ * Thumbprints and exact common names are answered with a single hash lookup.  Common names containing the * wildcard scan the
+ * distinct common names rather than the anchors.
+ */
+public class BundleAnchorIndex
+{
+	/**
+	 * An anchor within a specific bundle.
+	 */
+	public static class Entry
+	{
+		protected final String bundleName;
+		protected final String thumbprint;
+		protected final String subject;
+		protected final String commonName;
+		protected final Calendar validEnd;
+		protected final List<String> domains;
+
+		protected Entry(String bundleName, String thumbprint, String subject, String commonName, Calendar validEnd, List<String> domains)
+		{
+			this.bundleName = bundleName;
+			this.thumbprint = thumbprint;
+			this.subject = subject;
+			this.commonName = commonName;
+			this.validEnd = validEnd;
+			this.domains = domains;
+		}
+
+		public String getBundleName()
+		{
+			return bundleName;
+		}
+
+		public String getThumbprint()
+		{
+			return thumbprint;
+		}
+
+		public String getSubject()
+		{
+			return subject;
+		}
+
+		public String getCommonName()
+		{
+			return commonName;
+		}
+
+		public Calendar getValidEnd()
+		{
+			return validEnd;
+		}
+
+		/**
+		 * Gets the domains the bundle is associated with, each followed by the trusted directions.
+		 * @return The associated domains.
+		 */
+		public List<String> getDomains()
+		{
+			return domains;
+		}
+	}
+
+	protected final Map<String, List<Entry>> byThumbprint;
+
+	protected final Map<String, List<Entry>> byCommonName;
+
+	protected final int size;
+
+	protected BundleAnchorIndex(Map<String, List<Entry>> byThumbprint, Map<String, List<Entry>> byCommonName, int size)
+	{
+		this.byThumbprint = byThumbprint;
+		this.byCommonName = byCommonName;
+		this.size = size;
+	}
+
+	/**
+	 * Builds an index by decoding the anchors of all bundles in parallel.
+	 * @param bundles The bundles including their anchors.
+	 * @param reltns The domain associations of each bundle keyed by bundle name.
+	 * @return The index.
+	 */
+	public static BundleAnchorIndex build(Collection<TrustBundle> bundles, Map<String, List<TrustBundleDomainReltn>> reltns)
+	{
+		final List<Map.Entry<TrustBundle, TrustBundleAnchor>> anchors = new ArrayList<Map.Entry<TrustBundle, TrustBundleAnchor>>();
+		for (TrustBundle bundle : bundles)
+			if (bundle.getTrustBundleAnchors() != null)
+				for (TrustBundleAnchor anchor : bundle.getTrustBundleAnchors())
+					anchors.add(new AbstractMap.SimpleImmutableEntry<TrustBundle, TrustBundleAnchor>(bundle, anchor));
+
+		final Map<String, List<String>> domains = new ConcurrentHashMap<String, List<String>>();
+		for (Map.Entry<String, List<TrustBundleDomainReltn>> entry : reltns.entrySet())
+			domains.put(entry.getKey(), entry.getValue().stream()
+					.map(reltn -> reltn.getDomain().getDomainName() + " (" + getDirection(reltn) + ")")
+					.sorted()
+					.collect(Collectors.toList()));
+
+		final Map<String, List<Entry>> byThumbprint = new ConcurrentHashMap<String, List<Entry>>();
+		final Map<String, List<Entry>> byCommonName = new ConcurrentHashMap<String, List<Entry>>();
+		anchors.parallelStream().forEach(anchor ->
+		{
+			final String bundleName = anchor.getKey().getBundleName();
+			final Entry entry = toEntry(bundleName, anchor.getValue(), domains.getOrDefault(bundleName, Collections.<String>emptyList()));
+
+			byThumbprint.computeIfAbsent(entry.thumbprint, k -> Collections.synchronizedList(new ArrayList<Entry>())).add(entry);
+			if (!entry.commonName.isEmpty())
+				byCommonName.computeIfAbsent(entry.commonName.toLowerCase(Locale.ENGLISH),
+						k -> Collections.synchronizedList(new ArrayList<Entry>())).add(entry);
+		});
+
+		return new BundleAnchorIndex(byThumbprint, byCommonName, anchors.size());
+	}
+
+	/**
+	 * Finds the bundle anchors matching a thumbprint or a subject common name.  Thumbprints may contain spaces or colons and are
+	 * case insensitive; common names are case insensitive, may be prefixed with CN=, and may contain the * wildcard.
+	 * @param term The thumbprint or common name.
+	 * @return The matching bundle anchors ordered by bundle name.
+	 */
+	public List<Entry> find(String term)
+	{
+		final List<Entry> retVal = new ArrayList<Entry>();
+
+		final String thumbprint = term.replaceAll("[\\s:]", "").toLowerCase(Locale.ENGLISH);
+		final List<Entry> tpMatches = byThumbprint.get(thumbprint);
+		if (tpMatches != null)
+			retVal.addAll(tpMatches);
+
+		String commonName = term.trim();
+		if (commonName.regionMatches(true, 0, "CN=", 0, 3))
+			commonName = commonName.substring(3).trim();
+		commonName = commonName.toLowerCase(Locale.ENGLISH);
+
+		if (commonName.indexOf('*') < 0)
+		{
+			final List<Entry> cnMatches = byCommonName.get(commonName);
+			if (cnMatches != null)
+				retVal.addAll(cnMatches);
+		}
+		else
+		{
+			final Pattern pattern = CertSearchIndex.toGlobPattern(commonName);
+			for (Map.Entry<String, List<Entry>> entry : byCommonName.entrySet())
+				if (pattern.matcher(entry.getKey()).matches())
+					retVal.addAll(entry.getValue());
+		}
+
+		retVal.sort((e1, e2) ->
+		{
+			final int cmp = e1.bundleName.compareToIgnoreCase(e2.bundleName);
+			return (cmp != 0) ? cmp : e1.thumbprint.compareTo(e2.thumbprint);
+		});
+
+		return retVal;
+	}
+
+	/**
+	 * Gets the number of indexed bundle anchors.
+	 * @return The number of indexed bundle anchors.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	protected static Entry toEntry(String bundleName, TrustBundleAnchor anchor, List<String> domains)
+	{
+		final String thumbprint = ThumbprintService.getInstance().getThumbprint(anchor.getAnchorData());
+
+		String subject = "";
+		String commonName = "";
+		try
+		{
+			final X509Certificate cert = anchor.getAsX509Certificate();
+			subject = cert.getSubjectX500Principal().getName();
+			for (Rdn rdn : new LdapName(cert.getSubjectX500Principal().getName(X500Principal.RFC2253)).getRdns())
+				if (rdn.getType().equalsIgnoreCase("CN"))
+					commonName = CertSearchIndex.getRdnValue(rdn);
+		}
+		catch (Exception e)
+		{
+			// undecodable anchors are only indexed by thumbprint
+		}
+
+		return new Entry(bundleName, thumbprint, subject, commonName, anchor.getValidEndDate(), domains);
+	}
+
+	protected static String getDirection(TrustBundleDomainReltn reltn)
+	{
+		return (reltn.isIncoming() && reltn.isOutgoing()) ? "in/out" : reltn.isIncoming() ? "in" : reltn.isOutgoing() ? "out" : "none";
+	}
+}
@@ -0,0 +1,64 @@
+package org.nhindirect.config.manager;
+
+import java.util.Date;
+
+/**
+ * The result of validating the certificate chain of a single stored certificate.
+ */
+public class CertChainValidation
+{
+	public enum Status
+	{
+		TRUSTED,
+
+		EXPIRING,
+
+		EXPIRED,
+
+		UNTRUSTED
+	}
+
+	protected final String owner;
+	protected final String thumbprint;
+	protected final Status status;
+	protected final Date expires;
+	protected final String detail;
+
+	public CertChainValidation(String owner, String thumbprint, Status status, Date expires, String detail)
+	{
+		this.owner = owner;
+		this.thumbprint = thumbprint;
+		this.status = status;
+		this.expires = expires;
+		this.detail = detail;
+	}
+
+	public String getOwner()
+	{
+		return owner;
+	}
+
+	public String getThumbprint()
+	{
+		return thumbprint;
+	}
+
+	public Status getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * Gets the earliest expiration date of all certificates in the chain.
+	 * @return The earliest expiration date in the chain.
+	 */
+	public Date getExpires()
+	{
+		return expires;
+	}
+
+	public String getDetail()
+	{
+		return detail;
+	}
+}
@@ -1,14 +1,30 @@
 package org.nhindirect.config.manager;
 
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
 import org.nhind.config.rest.CertificateService;
@@ -64,10 +80,42 @@ public class CertCommands
             "\r\n  thumbprint" +
             "\r\n\t thumbprint: The thumbprint of the certificate to be removed";    
     
+    private static final String SYNC_CERTS_USAGE = "Synchronizes the public certificates in the system with the certificate files in a directory.  " +
+    		"Certificates are matched by thumbprint; certificates found only in the directory are added and public certificates found only in the system are removed." +
+            "\r\n  dir ownerPattern [dryRun]" +
+            "\r\n\t dir: Fully qualified path of the directory containing the DER or PEM encoded public certificates.  Place the path in quotes (\"\") if there are spaces in the path." +
+            "\r\n\t ownerPattern: Owner (email address or domain) of the certificates to synchronize.  The wildcard * matches any sequence of characters." +
+            "\r\n\t [dryRun]: Optional.  If true, the changes are printed but not applied.  Valid values are true or false.  Defaults to false.";
+    
+    private static final String CERT_INVENTORY_USAGE = "Prints an inventory of the certificates in the system by record type, key algorithm and size, signature algorithm, and policy OID." +
+            "\r\n  [csvFile]" +
+            "\r\n\t [csvFile]: Optional.  Fully qualified path and file name of a CSV file to write the details of each certificate to.  Place the file name in quotes (\"\") if there are spaces in the path or name.";
+    
+    private static final String ROTATE_CERTS_USAGE = "Rotates certificates from a mapping file.  For each owner the new certificate is imported before the old certificate is removed.  " +
+    		"Completed rows are recorded in a journal file (mappingFile.done) and are skipped when the command is run again." +
+            "\r\n  mappingFile [parallel]" +
+            "\r\n\t mappingFile: Fully qualified path and file name of the mapping file.  Each line contains comma separated values: owner,certFile,oldThumbprint[,passphrase].  " +
+            "certFile is a pkcs12 or DER certificate file.  Blank lines and lines starting with # are ignored." +
+            "\r\n\t [parallel]: Optional.  Maximum number of owners rotated at the same time.  Defaults to " + ParallelTasks.DEFAULT_PARALLELISM + ".";
+    
+    private static final String FIND_CERTS_USAGE = "Finds certificates by subject, subject alternative name, or issuer.  " +
+    		"The search index is built from a single listing of all certificates and reused until certificates are changed by this console or the index is refreshed." +
+            "\r\n  term [term ...]" +
+            "\r\n\t term: field=value or value to match any field.  All terms must match.  Values are case insensitive and may contain the * wildcard.  " +
+            "Place the term in quotes (\"\") if it contains spaces." +
+            "\r\n\t\t Fields: CN, O, OU, L, ST, C, EMAILADDRESS, SAN, EMAIL, DNS, URI, ISSUER, OWNER" +
+            "\r\n\t\t Examples: SAN=*.hospital.org  O=Acme  \"ISSUER=Direct Trust CA\"";
+    
+    private static final String REFRESH_CERT_INDEX_USAGE = "Discards the certificate search index used by FindCerts so that it is rebuilt on the next search.";
+    
+    protected static final int DELETE_BATCH_SIZE = 100;
+    
     
 	protected CertificateService certService;
     
 	protected RecordPrinter<Certificate> certPrinter;
+	
+	protected volatile CertSearchIndex certIndex;
     
 	public CertCommands(CertificateService certService)
 	{
@@ -159,6 +207,7 @@ public class CertCommands
 			addCert.setStatus(EntityStatus.ENABLED);
 
 			certService.addCertificate(addCert);
+			invalidateCertIndex();
 			System.out.println("Successfully imported public certificate.");
 			
 		}
@@ -194,6 +243,7 @@ public class CertCommands
 			addCert.setStatus(EntityStatus.ENABLED);
 
 			certService.addCertificate(addCert);
+			invalidateCertIndex();
 			System.out.println("Successfully imported certificate.");
 			
 		}
@@ -218,18 +268,10 @@ public class CertCommands
 			
 			final byte[] certBytes = FileUtils.readFileToByteArray(new File(fileLoc));
 			
-			final byte[] insertBytes = (passPhrase == null || passPhrase.isEmpty()) ?
-					certBytes : CertUtils.pkcs12ToStrippedPkcs12(certBytes, passPhrase);
-			
-			final X509Certificate cert = CertUtils.toX509Certificate(insertBytes);
-			
-			Certificate addCert = new Certificate();
-			addCert.setData(certBytes);
-			addCert.setOwner(CryptoExtensions.getSubjectAddress(cert));
-			addCert.setPrivateKey(cert instanceof X509CertificateEx);
-			addCert.setStatus(EntityStatus.ENABLED);
+			final X509Certificate cert = decodePrivateCert(certBytes, passPhrase);
 
-			certService.addCertificate(addCert);
+			certService.addCertificate(toPrivateCertRecord(certBytes, cert));
+			invalidateCertIndex();
 			System.out.println("Successfully imported private certificate.");
 			
 		}
@@ -260,6 +302,7 @@ public class CertCommands
 				addCert.setStatus(EntityStatus.ENABLED);
 
 				certService.addCertificate(addCert);
+				invalidateCertIndex();
 				System.out.println("Successfully added IPKIX certificate URL.");
 
 			
@@ -278,6 +321,7 @@ public class CertCommands
 		try
 		{
 			certService.deleteCertificateByOwner(owner);
+			invalidateCertIndex();
 			System.out.println("Successfully removed certificate for owner." + owner);
 		}
 		catch (Exception e)
@@ -304,6 +348,7 @@ public class CertCommands
 			}
 			
 			certService.deleteCertificatesByIds(Arrays.asList(cert.getId()));
+			invalidateCertIndex();
 			System.out.println("Successfully removed certificate for thumbprint." + tp);
 		}
 		catch (Exception e)
@@ -312,6 +357,426 @@ public class CertCommands
 		}	
 	}
 
+	@Command(name = "SyncCerts", usage = SYNC_CERTS_USAGE)
+    public void syncCerts(String[] args)
+	{
+		final String dirLoc = StringArrayUtil.getRequiredValue(args, 0);
+		final String ownerPattern = StringArrayUtil.getRequiredValue(args, 1);
+		final boolean dryRun = Boolean.parseBoolean(StringArrayUtil.getOptionalValue(args, 2, "false"));
+		
+		final Pattern pattern = toOwnerPattern(ownerPattern);
+		
+		// hash the local certificate files by thumbprint
+		final Map<String, X509Certificate> localCerts = new HashMap<String, X509Certificate>();
+		int unreadableFiles = 0;
+		try
+		{
+			final List<File> files = CertificateFiles.listFiles(new File(dirLoc));
+			
+			for (ParallelTasks.Outcome<File, List<X509Certificate>> outcome : 
+				ParallelTasks.invokeAll(files, Runtime.getRuntime().availableProcessors(), file -> CertificateFiles.readCertificates(file)))
+			{
+				if (!outcome.isSuccess())
+				{
+					++unreadableFiles;
+					System.out.println("Error reading file " + outcome.getItem().getName() + " : " + outcome.getError().getMessage());
+					continue;
+				}
+				
+				for (X509Certificate cert : outcome.getResult())
+					if (pattern.matcher(CryptoExtensions.getSubjectAddress(cert)).matches())
+						localCerts.put(ThumbprintService.getInstance().getThumbprint(cert), cert);
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error reading directory " + dirLoc + " : " + e.getMessage());
+			return;
+		}
+		
+		// the certificates of an unreadable file would otherwise be planned for removal
+		if (unreadableFiles > 0)
+		{
+			System.out.println(unreadableFiles + " files could not be read.  No changes applied.");
+			return;
+		}
+		
+		// hash the public certificates in the system by thumbprint; private certificates are only used to avoid adding a public duplicate
+		final Map<String, List<Certificate>> storedCerts = new HashMap<String, List<Certificate>>();
+		final Set<String> privateCerts = new HashSet<String>();
+		try
+		{
+			final Collection<Certificate> certs = certService.getAllCertificates();
+			if (certs != null)
+			{
+				for (Certificate cert : certs)
+				{
+					if (cert.getOwner() == null || !pattern.matcher(cert.getOwner()).matches())
+						continue;
+					
+					try
+					{
+						final String tp = ThumbprintService.getInstance().getThumbprint(CertUtils.toCertContainer(cert.getData()).getCert());
+						if (cert.isPrivateKey())
+						{
+							privateCerts.add(tp);
+							continue;
+						}
+						
+						List<Certificate> tpCerts = storedCerts.get(tp);
+						if (tpCerts == null)
+						{
+							tpCerts = new ArrayList<Certificate>();
+							storedCerts.put(tp, tpCerts);
+						}
+						tpCerts.add(cert);
+					}
+					catch (Exception e)
+					{
+						// IPKIX URL records do not have a thumbprint and are not synchronized
+					}
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup certificates: " + e.getMessage());
+			return;
+		}
+		
+		// compute the plan
+		final TreeSet<String> toAdd = new TreeSet<String>(localCerts.keySet());
+		toAdd.removeAll(storedCerts.keySet());
+		toAdd.removeAll(privateCerts);
+		
+		final TreeSet<String> toRemove = new TreeSet<String>(storedCerts.keySet());
+		toRemove.removeAll(localCerts.keySet());
+		
+		for (String tp : toAdd)
+			System.out.println("ADD     " + tp + "  " + CryptoExtensions.getSubjectAddress(localCerts.get(tp)));
+		
+		final List<Long> removeIds = new ArrayList<Long>();
+		for (String tp : toRemove)
+		{
+			for (Certificate cert : storedCerts.get(tp))
+			{
+				System.out.println("REMOVE  " + tp + "  " + cert.getOwner());
+				removeIds.add(cert.getId());
+			}
+		}
+		
+		System.out.println(toAdd.size() + " to add, " + removeIds.size() + " to remove, " + (localCerts.size() - toAdd.size()) + " unchanged.");
+		
+		if (dryRun)
+		{
+			System.out.println("Dry run: no changes applied.");
+			return;
+		}
+		
+		invalidateCertIndex();
+		
+		// add before removing so that an owner is not left without a certificate
+		final List<X509Certificate> addCerts = new ArrayList<X509Certificate>();
+		for (String tp : toAdd)
+			addCerts.add(localCerts.get(tp));
+		
+		int addFailures = 0;
+		for (ParallelTasks.Outcome<X509Certificate, Void> outcome : ParallelTasks.<X509Certificate, Void>invokeAll(addCerts, cert -> 
+			{
+				final Certificate addCert = new Certificate();
+				addCert.setData(cert.getEncoded());
+				addCert.setOwner(CryptoExtensions.getSubjectAddress(cert));
+				addCert.setPrivateKey(false);
+				addCert.setStatus(EntityStatus.ENABLED);
+	
+				certService.addCertificate(addCert);
+				return null;
+			}))
+		{
+			if (!outcome.isSuccess())
+			{
+				++addFailures;
+				System.out.println("Error adding certificate for " + CryptoExtensions.getSubjectAddress(outcome.getItem()) + " : " + outcome.getError().getMessage());
+			}
+		}
+		
+		int removeFailures = 0;
+		for (int i = 0; i < removeIds.size(); i += DELETE_BATCH_SIZE)
+		{
+			final List<Long> batch = removeIds.subList(i, Math.min(i + DELETE_BATCH_SIZE, removeIds.size()));
+			try
+			{
+				certService.deleteCertificatesByIds(batch);
+			}
+			catch (Exception e)
+			{
+				removeFailures += batch.size();
+				System.out.println("Error removing certificates " + batch + " : " + e.getMessage());
+			}
+		}
+		
+		System.out.println("Added " + (addCerts.size() - addFailures) + " certificates, removed " + (removeIds.size() - removeFailures) + " certificates.");
+	}
+	
+	@Command(name = "FindCerts", usage = FIND_CERTS_USAGE)
+    public void findCerts(String[] args)
+	{
+		if (args.length == 0)
+		{
+			System.out.println("At least one search term is required");
+			return;
+		}
+		
+		CertSearchIndex index = certIndex;
+		if (index == null)
+		{
+			try
+			{
+				final Collection<Certificate> certs = certService.getAllCertificates();
+				if (certs == null || certs.size() == 0)
+				{
+					System.out.println("No certificates found");
+					return;
+				}
+				
+				index = CertSearchIndex.build(certs);
+				certIndex = index;
+			}
+			catch (Exception e)
+			{
+				System.out.println("Failed to lookup certificates: " + e.getMessage());
+				return;
+			}
+		}
+		
+		final Collection<Certificate> matches = index.find(Arrays.asList(args));
+		if (matches.isEmpty())
+			System.out.println("No certificates found");
+		else
+		{
+			certPrinter.printRecords(matches);
+			System.out.println(matches.size() + " of " + index.size() + " certificates matched");
+		}
+	}
+	
+	@Command(name = "RefreshCertIndex", usage = REFRESH_CERT_INDEX_USAGE)
+    public void refreshCertIndex(String[] args)
+	{
+		invalidateCertIndex();
+		System.out.println("Certificate search index cleared.");
+	}
+	
+	/**
+	 * Discards the search index after certificates are changed so that FindCerts does not return stale results.
+	 */
+	protected void invalidateCertIndex()
+	{
+		certIndex = null;
+	}
+	
+	@Command(name = "CertInventory", usage = CERT_INVENTORY_USAGE)
+    public void certInventory(String[] args)
+	{
+		final String csvFile = StringArrayUtil.getOptionalValue(args, 0, "");
+		
+		final Collection<Certificate> certs;
+		try
+		{
+			certs = certService.getAllCertificates();
+			if (certs == null || certs.size() == 0)
+			{
+				System.out.println("No certificates found");
+				return;
+			}
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup certificates: " + e.getMessage());
+			return;
+		}
+		
+		final CertInventory inventory = new CertInventory();
+		final List<CertInventory.Entry> entries = certs.parallelStream().map(inventory::add).collect(Collectors.toList());
+		
+		System.out.println("Inventory of " + entries.size() + " certificates\r\n");
+		inventory.printSummary();
+		
+		if (!csvFile.isEmpty())
+		{
+			final File file = new File(csvFile);
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))
+			{
+				CertInventory.writeCSV(entries, writer);
+				System.out.println("Wrote certificate details to " + file.getAbsolutePath());
+			}
+			catch (IOException e)
+			{
+				System.out.println("Error writing file " + csvFile + " : " + e.getMessage());
+			}
+		}
+	}
+	
+	@Command(name = "RotateCerts", usage = ROTATE_CERTS_USAGE)
+    public void rotateCerts(String[] args)
+	{
+		final String mappingFile = StringArrayUtil.getRequiredValue(args, 0);
+		final int parallel = ParallelTasks.parseParallelism(StringArrayUtil.getOptionalValue(args, 1, ""));
+		
+		final File journalFile = new File(mappingFile + ".done");
+		
+		// group the rows by owner so that the rotations of a single owner are applied in order
+		final Map<String, List<String[]>> ownerRows = new LinkedHashMap<String, List<String[]>>();
+		final Set<String> completed = new HashSet<String>();
+		int skipped = 0;
+		try
+		{
+			if (journalFile.exists())
+				completed.addAll(Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8));
+			
+			int lineNum = 0;
+			for (String line : Files.readAllLines(new File(mappingFile).toPath(), StandardCharsets.UTF_8))
+			{
+				++lineNum;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				
+				final String[] row = line.split(",", -1);
+				for (int i = 0; i < row.length; ++i)
+					row[i] = row[i].trim();
+				
+				if (row.length < 3 || row[0].isEmpty() || row[1].isEmpty() || row[2].isEmpty())
+				{
+					System.out.println("Invalid mapping on line " + lineNum + ": " + line);
+					return;
+				}
+				
+				if (completed.contains(toJournalEntry(row)))
+				{
+					++skipped;
+					continue;
+				}
+				
+				ownerRows.computeIfAbsent(row[0].toLowerCase(), key -> new ArrayList<String[]>()).add(row);
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error reading file " + mappingFile + " : " + e.getMessage());
+			return;
+		}
+		
+		if (skipped > 0)
+			System.out.println("Skipping " + skipped + " rotations already recorded in " + journalFile.getAbsolutePath());
+		
+		if (ownerRows.isEmpty())
+		{
+			System.out.println("No certificates to rotate");
+			return;
+		}
+		
+		invalidateCertIndex();
+		
+		final Object journalLock = new Object();
+		final List<ParallelTasks.Outcome<List<String[]>, Void>> outcomes = ParallelTasks.<List<String[]>, Void>invokeAll(ownerRows.values(), parallel, rows ->
+		{
+			for (String[] row : rows)
+			{
+				rotateCert(row[0], row[1], row[2], (row.length > 3) ? row[3] : "");
+				
+				synchronized (journalLock)
+				{
+					Files.write(journalFile.toPath(), Arrays.asList(toJournalEntry(row)), StandardCharsets.UTF_8, 
+							StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				}
+			}
+			return null;
+		});
+		
+		int failures = 0;
+		for (ParallelTasks.Outcome<List<String[]>, Void> outcome : outcomes)
+		{
+			final String owner = outcome.getItem().get(0)[0];
+			if (outcome.isSuccess())
+				System.out.println(String.format("%-50s rotated in %d ms", owner, outcome.getElapsedMillis()));
+			else
+			{
+				++failures;
+				System.out.println(String.format("%-50s FAILED after %d ms : %s", owner, outcome.getElapsedMillis(), outcome.getError().getMessage()));
+			}
+		}
+		
+		System.out.println("Rotated certificates for " + (outcomes.size() - failures) + " owners, " + failures + " failed.");
+		if (failures > 0)
+			System.out.println("Run the command again to retry the failed owners.");
+	}
+	
+	/**
+	 * Imports a new certificate for an owner and then removes the old certificate.  Steps that were already applied
+	 * by an interrupted run are skipped.  Nothing is imported if the old certificate does not exist and was not already replaced.
+	 */
+	protected void rotateCert(String owner, String certFile, String oldThumbprint, String passPhrase) throws Exception
+	{
+		final byte[] certBytes = FileUtils.readFileToByteArray(new File(certFile));
+		final X509Certificate cert = decodePrivateCert(certBytes, passPhrase);
+		final Certificate addCert = toPrivateCertRecord(certBytes, cert);
+		
+		if (!owner.equalsIgnoreCase(addCert.getOwner()))
+			throw new IllegalArgumentException("Certificate " + certFile + " belongs to " + addCert.getOwner() + ", not " + owner);
+		
+		final String newThumbprint = ThumbprintService.getInstance().getThumbprint(cert);
+		if (newThumbprint.equalsIgnoreCase(oldThumbprint))
+			throw new IllegalArgumentException("Certificate " + certFile + " is the certificate being replaced");
+		
+		final boolean imported = certService.getCertificatesByOwnerAndThumbprint(owner, newThumbprint) != null;
+		final Certificate oldCert = certService.getCertificatesByOwnerAndThumbprint(owner, oldThumbprint);
+		if (oldCert == null)
+		{
+			// an interrupted run may have imported the new certificate and removed the old one before recording the row
+			if (imported)
+				return;
+			
+			throw new IllegalArgumentException("No certificate with thumbprint " + oldThumbprint + " found for " + owner);
+		}
+		
+		if (!imported)
+			certService.addCertificate(addCert);
+		
+		certService.deleteCertificatesByIds(Arrays.asList(oldCert.getId()));
+	}
+	
+	protected static String toJournalEntry(String[] row)
+	{
+		return row[0].toLowerCase() + "," + row[2].toLowerCase();
+	}
+	
+	protected static X509Certificate decodePrivateCert(byte[] certBytes, String passPhrase) throws Exception
+	{
+		final byte[] insertBytes = (passPhrase == null || passPhrase.isEmpty()) ?
+				certBytes : CertUtils.pkcs12ToStrippedPkcs12(certBytes, passPhrase);
+		
+		return CertUtils.toX509Certificate(insertBytes);
+	}
+	
+	protected static Certificate toPrivateCertRecord(byte[] certBytes, X509Certificate cert)
+	{
+		final Certificate addCert = new Certificate();
+		addCert.setData(certBytes);
+		addCert.setOwner(CryptoExtensions.getSubjectAddress(cert));
+		addCert.setPrivateKey(cert instanceof X509CertificateEx);
+		addCert.setStatus(EntityStatus.ENABLED);
+		
+		return addCert;
+	}
+	
+	/**
+	 * Converts an owner pattern where * matches any sequence of characters to a case insensitive regular expression.
+	 */
+	protected static Pattern toOwnerPattern(String ownerPattern)
+	{
+		return CertSearchIndex.toGlobPattern(ownerPattern);
+	}
+	
 	public void setRecordPrinter(RecordPrinter<Certificate> printer)
 	{
 		this.certPrinter = printer; 
@@ -0,0 +1,285 @@
+package org.nhindirect.config.manager;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.x509.CertificatePolicies;
+import org.bouncycastle.asn1.x509.PolicyInformation;
+import org.nhindirect.config.model.Certificate;
+import org.nhindirect.config.model.utils.CertUtils;
+
+/**
+ * Aggregates counts of record types, key algorithms and sizes, signature algorithms, and policy OIDs over a set of
+ * stored certificates.  Records may be added concurrently from multiple threads.
+ */
+public class CertInventory
+{
+	protected static final String CERT_POLICIES_OID = "2.5.29.32";
+
+	protected static final String CSV_HEADER = "Owner,Record Type,Private Key,Key Algorithm,Key Size,Signature Algorithm,Expires,Policy OIDs,Thumbprint/URL";
+
+	protected final Map<String, LongAdder> recordTypes = new ConcurrentHashMap<String, LongAdder>();
+	protected final Map<String, LongAdder> keyStorage = new ConcurrentHashMap<String, LongAdder>();
+	protected final Map<String, LongAdder> keyTypes = new ConcurrentHashMap<String, LongAdder>();
+	protected final Map<String, LongAdder> signatureAlgorithms = new ConcurrentHashMap<String, LongAdder>();
+	protected final Map<String, LongAdder> policyOids = new ConcurrentHashMap<String, LongAdder>();
+
+	/**
+	 * Inventory information of a single stored certificate.
+	 */
+	public static class Entry
+	{
+		protected String owner;
+		protected String recordType;
+		protected boolean privateKey;
+		protected String keyAlgorithm = "";
+		protected int keySize;
+		protected String signatureAlgorithm = "";
+		protected Date expires;
+		protected List<String> policyOids = Collections.emptyList();
+		protected String thumbprintOrURL = "";
+
+		public String getOwner()
+		{
+			return owner;
+		}
+
+		public String getRecordType()
+		{
+			return recordType;
+		}
+
+		public boolean isPrivateKey()
+		{
+			return privateKey;
+		}
+
+		public String getKeyAlgorithm()
+		{
+			return keyAlgorithm;
+		}
+
+		public int getKeySize()
+		{
+			return keySize;
+		}
+
+		public String getSignatureAlgorithm()
+		{
+			return signatureAlgorithm;
+		}
+
+		public Date getExpires()
+		{
+			return expires;
+		}
+
+		public List<String> getPolicyOids()
+		{
+			return policyOids;
+		}
+
+		public String getThumbprintOrURL()
+		{
+			return thumbprintOrURL;
+		}
+	}
+
+	/**
+	 * Decodes a stored certificate and adds it to the inventory counters.
+	 * @param record The stored certificate.
+	 * @return The inventory information of the certificate.
+	 */
+	public Entry add(Certificate record)
+	{
+		final Entry entry = new Entry();
+		entry.owner = record.getOwner();
+		entry.privateKey = record.isPrivateKey();
+
+		X509Certificate cert = null;
+		try
+		{
+			cert = CertUtils.toCertContainer(record.getData()).getCert();
+		}
+		catch (Exception e)
+		{
+			// not a certificate; may be an IPKIX URL
+		}
+
+		if (cert != null)
+		{
+			entry.recordType = "PKIX";
+			entry.keyAlgorithm = cert.getPublicKey().getAlgorithm();
+			entry.keySize = getKeySize(cert.getPublicKey());
+			entry.signatureAlgorithm = cert.getSigAlgName();
+			entry.expires = cert.getNotAfter();
+			entry.policyOids = getPolicyOids(cert);
+			entry.thumbprintOrURL = ThumbprintService.getInstance().getThumbprint(cert);
+
+			increment(keyTypes, entry.keyAlgorithm + " " + ((entry.keySize > 0) ? Integer.toString(entry.keySize) : "?"));
+			increment(signatureAlgorithms, entry.signatureAlgorithm);
+			for (String oid : entry.policyOids)
+				increment(policyOids, oid);
+			if (entry.policyOids.isEmpty())
+				increment(policyOids, "<none>");
+		}
+		else if (entry.privateKey)
+		{
+			// a private key container protected with a passphrase can not be decoded, so its key details are unknown
+			entry.recordType = "PKIX (encrypted)";
+			increment(keyTypes, "<unknown, encrypted>");
+			increment(policyOids, "<unknown, encrypted>");
+		}
+		else
+		{
+			try
+			{
+				entry.thumbprintOrURL = new URL(new String(record.getData())).toString();
+				entry.recordType = "IPKIX";
+			}
+			catch (Exception e)
+			{
+				entry.recordType = "INVALID";
+			}
+		}
+
+		increment(recordTypes, entry.recordType);
+		increment(keyStorage, entry.privateKey ? "Private" : "Public");
+
+		return entry;
+	}
+
+	/**
+	 * Prints the aggregated counters.
+	 */
+	public void printSummary()
+	{
+		printSection("Record Types", recordTypes);
+		printSection("Key Storage", keyStorage);
+		printSection("Key Algorithms and Sizes", keyTypes);
+		printSection("Signature Algorithms", signatureAlgorithms);
+		printSection("Policy OIDs", policyOids);
+	}
+
+	/**
+	 * Writes inventory entries as CSV rows with a header row.
+	 * @param entries The entries to write.
+	 * @param writer The destination of the rows.
+	 * @throws IOException If the rows cannot be written.
+	 */
+	public static void writeCSV(List<Entry> entries, Writer writer) throws IOException
+	{
+		final SimpleDateFormat dtFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+		writer.write(CSV_HEADER);
+		writer.write("\r\n");
+		for (Entry entry : entries)
+		{
+			writer.write(csvValue(entry.owner));
+			writer.write(',');
+			writer.write(entry.recordType);
+			writer.write(',');
+			writer.write(entry.privateKey ? "Y" : "N");
+			writer.write(',');
+			writer.write(csvValue(entry.keyAlgorithm));
+			writer.write(',');
+			writer.write((entry.keySize > 0) ? Integer.toString(entry.keySize) : "");
+			writer.write(',');
+			writer.write(csvValue(entry.signatureAlgorithm));
+			writer.write(',');
+			writer.write((entry.expires == null) ? "" : dtFormat.format(entry.expires));
+			writer.write(',');
+			writer.write(csvValue(String.join(";", entry.policyOids)));
+			writer.write(',');
+			writer.write(csvValue(entry.thumbprintOrURL));
+			writer.write("\r\n");
+		}
+	}
+
+	protected static String csvValue(String value)
+	{
+		if (value == null)
+			return "";
+
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+			return value;
+
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	protected static int getKeySize(PublicKey key)
+	{
+		if (key instanceof RSAPublicKey)
+			return ((RSAPublicKey)key).getModulus().bitLength();
+		else if (key instanceof ECPublicKey)
+			return ((ECPublicKey)key).getParams().getOrder().bitLength();
+		else if (key instanceof DSAPublicKey && ((DSAPublicKey)key).getParams() != null)
+			return ((DSAPublicKey)key).getParams().getP().bitLength();
+
+		return 0;
+	}
+
+	protected static List<String> getPolicyOids(X509Certificate cert)
+	{
+		final byte[] ext = cert.getExtensionValue(CERT_POLICIES_OID);
+		if (ext == null)
+			return Collections.emptyList();
+
+		try
+		{
+			final CertificatePolicies policies =
+					CertificatePolicies.getInstance(ASN1Primitive.fromByteArray(ASN1OctetString.getInstance(ext).getOctets()));
+
+			final List<String> retVal = new ArrayList<String>();
+			for (PolicyInformation info : policies.getPolicyInformation())
+				retVal.add(info.getPolicyIdentifier().getId());
+
+			return retVal;
+		}
+		catch (Exception e)
+		{
+			return Collections.singletonList("<unparsable>");
+		}
+	}
+
+	protected static void increment(Map<String, LongAdder> counters, String key)
+	{
+		counters.computeIfAbsent(key, k -> new LongAdder()).increment();
+	}
+
+	protected static void printSection(String title, Map<String, LongAdder> counters)
+	{
+		System.out.println(title);
+
+		final List<Map.Entry<String, LongAdder>> entries = new ArrayList<Map.Entry<String, LongAdder>>(counters.entrySet());
+		entries.sort((e1, e2) ->
+		{
+			final int cmp = Long.compare(e2.getValue().sum(), e1.getValue().sum());
+			return (cmp != 0) ? cmp : e1.getKey().compareTo(e2.getKey());
+		});
+
+		if (entries.isEmpty())
+			System.out.println("\t<none>");
+
+		for (Map.Entry<String, LongAdder> entry : entries)
+			System.out.println(String.format("\t%-60s %8d", entry.getKey(), entry.getValue().sum()));
+
+		System.out.println();
+	}
+}
@@ -0,0 +1,280 @@
+package org.nhindirect.config.manager;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1String;
+import org.nhindirect.config.model.Certificate;
+import org.nhindirect.config.model.utils.CertUtils;
+
+/**
+ * Inverted index over the subject DN components, subject alternative names, and issuer of stored certificates.
+ * <p>
+ * Queries are made of one or more terms that must all match.  A term has the form field=value or just value to match any field.
+ * Values are case insensitive and may contain the * wildcard.  Supported fields are the subject attribute names (CN, O, OU, L, ST, C, EMAILADDRESS),
+ * SAN (any subject alternative name), EMAIL, DNS, URI, ISSUER (issuer attributes and full issuer DN), and OWNER.
+ */
+public class CertSearchIndex
+{
+	public static final String ANY_FIELD = "*";
+
+	protected static final Map<String, String> OID_NAMES;
+
+	protected static final Map<String, String> FIELD_ALIASES;
+
+	static
+	{
+		OID_NAMES = new HashMap<String, String>();
+		OID_NAMES.put("1.2.840.113549.1.9.1", "EMAILADDRESS");
+		OID_NAMES.put("2.5.4.5", "SERIALNUMBER");
+
+		FIELD_ALIASES = new HashMap<String, String>();
+		FIELD_ALIASES.put("E", "EMAILADDRESS");
+		FIELD_ALIASES.put("SUBJECTALTNAME", "SAN");
+	}
+
+	protected final List<Certificate> records;
+
+	protected final Map<String, Map<String, Set<Integer>>> index;
+
+	protected CertSearchIndex(List<Certificate> records, Map<String, Map<String, Set<Integer>>> index)
+	{
+		this.records = records;
+		this.index = index;
+	}
+
+	/**
+	 * Builds an index by decoding the certificates in parallel.  Records that are not certificates (such as IPKIX URLs) are
+	 * only indexed by owner.
+	 * @param certs The stored certificates.
+	 * @return The search index.
+	 */
+	public static CertSearchIndex build(Collection<Certificate> certs)
+	{
+		final List<Certificate> records = new ArrayList<Certificate>(certs);
+		final Map<String, Map<String, Set<Integer>>> index = new ConcurrentHashMap<String, Map<String, Set<Integer>>>();
+
+		IntStream.range(0, records.size()).parallel().forEach(i ->
+		{
+			final Certificate record = records.get(i);
+			if (record.getOwner() != null)
+				addEntry(index, "OWNER", record.getOwner(), i);
+
+			final X509Certificate cert;
+			try
+			{
+				cert = CertUtils.toCertContainer(record.getData()).getCert();
+			}
+			catch (Exception e)
+			{
+				return;
+			}
+
+			for (Rdn rdn : getRdns(cert.getSubjectX500Principal()))
+			{
+				final String field = rdn.getType().toUpperCase(Locale.ENGLISH);
+				addEntry(index, field, getRdnValue(rdn), i);
+				if (field.equals("EMAILADDRESS"))
+					addEntry(index, "EMAIL", getRdnValue(rdn), i);
+			}
+
+			addEntry(index, "ISSUER", cert.getIssuerX500Principal().getName(X500Principal.RFC2253, OID_NAMES), i);
+			for (Rdn rdn : getRdns(cert.getIssuerX500Principal()))
+				addEntry(index, "ISSUER", getRdnValue(rdn), i);
+
+			try
+			{
+				final Collection<List<?>> altNames = cert.getSubjectAlternativeNames();
+				if (altNames != null)
+				{
+					for (List<?> altName : altNames)
+					{
+						if (!(altName.get(1) instanceof String))
+							continue;
+
+						final String value = (String)altName.get(1);
+						addEntry(index, "SAN", value, i);
+
+						switch ((Integer)altName.get(0))
+						{
+							case 1:
+								addEntry(index, "EMAIL", value, i);
+								break;
+							case 2:
+								addEntry(index, "DNS", value, i);
+								break;
+							case 6:
+								addEntry(index, "URI", value, i);
+								break;
+							default:
+								break;
+						}
+					}
+				}
+			}
+			catch (Exception e)
+			{
+				// unparsable subject alternative names are not indexed
+			}
+		});
+
+		return new CertSearchIndex(records, index);
+	}
+
+	/**
+	 * Finds the certificates matching all of the terms.
+	 * @param terms The search terms.
+	 * @return The matching certificates in listing order.
+	 */
+	public List<Certificate> find(Collection<String> terms)
+	{
+		Set<Integer> matches = null;
+		for (String term : terms)
+		{
+			final Set<Integer> termMatches = findTerm(term);
+			if (matches == null)
+				matches = new TreeSet<Integer>(termMatches);
+			else
+				matches.retainAll(termMatches);
+
+			if (matches.isEmpty())
+				break;
+		}
+
+		if (matches == null)
+			return Collections.emptyList();
+
+		final List<Certificate> retVal = new ArrayList<Certificate>(matches.size());
+		for (Integer i : matches)
+			retVal.add(records.get(i));
+
+		return retVal;
+	}
+
+	/**
+	 * Gets the number of indexed records.
+	 * @return The number of indexed records.
+	 */
+	public int size()
+	{
+		return records.size();
+	}
+
+	protected Set<Integer> findTerm(String term)
+	{
+		String field = ANY_FIELD;
+		String value = term.trim();
+
+		final int idx = value.indexOf('=');
+		if (idx > 0)
+		{
+			field = value.substring(0, idx).trim().toUpperCase(Locale.ENGLISH);
+			value = value.substring(idx + 1).trim();
+			if (FIELD_ALIASES.containsKey(field))
+				field = FIELD_ALIASES.get(field);
+		}
+
+		final Map<String, Set<Integer>> fieldIndex = index.get(field);
+		if (fieldIndex == null)
+			return Collections.emptySet();
+
+		final String key = value.toLowerCase(Locale.ENGLISH);
+		if (key.indexOf('*') < 0)
+		{
+			final Set<Integer> retVal = fieldIndex.get(key);
+			return (retVal == null) ? Collections.<Integer>emptySet() : retVal;
+		}
+
+		// wildcard terms scan the distinct values of the field rather than the certificates
+		final Pattern pattern = toGlobPattern(key);
+		final Set<Integer> retVal = new TreeSet<Integer>();
+		for (Map.Entry<String, Set<Integer>> entry : fieldIndex.entrySet())
+			if (pattern.matcher(entry.getKey()).matches())
+				retVal.addAll(entry.getValue());
+
+		return retVal;
+	}
+
+	/**
+	 * Converts a pattern where * matches any sequence of characters to a case insensitive regular expression.
+	 * @param glob The pattern.
+	 * @return The compiled regular expression.
+	 */
+	public static Pattern toGlobPattern(String glob)
+	{
+		final StringBuilder regex = new StringBuilder();
+		final String[] parts = glob.split("\\*", -1);
+		for (int i = 0; i < parts.length; ++i)
+		{
+			if (i > 0)
+				regex.append(".*");
+			if (!parts[i].isEmpty())
+				regex.append(Pattern.quote(parts[i]));
+		}
+
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+	}
+
+	protected static void addEntry(Map<String, Map<String, Set<Integer>>> index, String field, String value, int recordIdx)
+	{
+		final String key = value.toLowerCase(Locale.ENGLISH);
+
+		index.computeIfAbsent(field, k -> new ConcurrentHashMap<String, Set<Integer>>())
+			.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(recordIdx);
+
+		index.computeIfAbsent(ANY_FIELD, k -> new ConcurrentHashMap<String, Set<Integer>>())
+			.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(recordIdx);
+	}
+
+	protected static List<Rdn> getRdns(X500Principal principal)
+	{
+		try
+		{
+			return new LdapName(principal.getName(X500Principal.RFC2253, OID_NAMES)).getRdns();
+		}
+		catch (Exception e)
+		{
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Gets the text of an RDN value.  Values that RFC 2253 names hex encode are parsed as the DER encoding of the value, so
+	 * string values are decoded from it.
+	 */
+	protected static String getRdnValue(Rdn rdn)
+	{
+		final Object value = rdn.getValue();
+		if (!(value instanceof byte[]))
+			return value.toString();
+
+		try
+		{
+			final ASN1Primitive decoded = ASN1Primitive.fromByteArray((byte[])value);
+			if (decoded instanceof ASN1String)
+				return ((ASN1String)decoded).getString();
+		}
+		catch (Exception e)
+		{
+			// not a DER encoded string
+		}
+
+		return Rdn.escapeValue(value);
+	}
+}
@@ -0,0 +1,431 @@
+package org.nhindirect.config.manager;
+
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.nhind.config.rest.AnchorService;
+import org.nhind.config.rest.CertificateService;
+import org.nhind.config.rest.TrustBundleService;
+import org.nhindirect.common.tooling.Command;
+import org.nhindirect.common.tooling.StringArrayUtil;
+import org.nhindirect.config.manager.printers.CertChainValidationPrinter;
+import org.nhindirect.config.model.Anchor;
+import org.nhindirect.config.model.Certificate;
+import org.nhindirect.config.model.TrustBundle;
+import org.nhindirect.config.model.TrustBundleAnchor;
+import org.nhindirect.config.model.TrustBundleDomainReltn;
+import org.nhindirect.config.model.utils.CertUtils;
+
+public class CertValidationCommands
+{
+    private static final String VALIDATE_CERT_CHAINS_USAGE = "Validates that the certificates in the system chain to a trust anchor or a trust bundle anchor in the system.  " +
+    		"Untrusted, expired, and soon to expire chains are reported.  Revocation is not checked." +
+            "\r\n  [domain] [expiringDays]" +
+            "\r\n\t [domain]: Optional.  Only validate the certificates of this domain against the domain's anchors and bundles.  Use * for all domains.  Defaults to all domains." +
+            "\r\n\t [expiringDays]: Optional.  Number of days within which a chain is reported as soon to expire.  Defaults to 30.";
+
+    protected static final int MAX_CHAIN_LENGTH = 10;
+
+	protected CertificateService certService;
+	protected AnchorService anchorService;
+	protected TrustBundleService bundleService;
+
+	protected final CertChainValidationPrinter validationPrinter;
+
+	public CertValidationCommands(CertificateService certService, AnchorService anchorService, TrustBundleService bundleService)
+	{
+		this.certService = certService;
+		this.anchorService = anchorService;
+		this.bundleService = bundleService;
+
+		this.validationPrinter = new CertChainValidationPrinter();
+	}
+
+	@Command(name = "ValidateCertChains", usage = VALIDATE_CERT_CHAINS_USAGE)
+    public void validateCertChains(String[] args)
+	{
+		final String domain = StringArrayUtil.getOptionalValue(args, 0, "*");
+		final String expiringArg = StringArrayUtil.getOptionalValue(args, 1, "30");
+		int expiringDays;
+		try
+		{
+			expiringDays = Integer.parseInt(expiringArg.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			expiringDays = -1;
+		}
+
+		if (expiringDays < 0)
+		{
+			System.out.println("Invalid expiringDays " + expiringArg + ".  The value must be zero or a positive number of days.");
+			return;
+		}
+
+		final String domainFilter = domain.equals("*") ? null : domain;
+
+		// load the anchors once and index them by subject
+		final Map<X500Principal, List<X509Certificate>> anchorIndex;
+		try
+		{
+			final List<String> undecodable = new ArrayList<String>();
+			anchorIndex = indexBySubject(loadAnchors(domainFilter, undecodable));
+			for (String anchor : undecodable)
+				System.out.println("Skipping anchor that could not be decoded: " + anchor);
+
+			if (anchorIndex.isEmpty())
+			{
+				System.out.println("No anchors found");
+				return;
+			}
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup anchors: " + e.getMessage());
+			return;
+		}
+
+		final List<Certificate> certs = new ArrayList<Certificate>();
+		try
+		{
+			final Collection<Certificate> allCerts = certService.getAllCertificates();
+			if (allCerts != null)
+				for (Certificate cert : allCerts)
+					if (domainFilter == null || isDomainOwner(cert.getOwner(), domainFilter))
+						certs.add(cert);
+
+			if (certs.isEmpty())
+			{
+				System.out.println("No certificates found");
+				return;
+			}
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup certificates: " + e.getMessage());
+			return;
+		}
+
+		final Date now = new Date();
+		final Date horizon = new Date(now.getTime() + TimeUnit.DAYS.toMillis(expiringDays));
+
+		final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		final List<CertChainValidation> results;
+		try
+		{
+			// IPKIX URL records do not contain a certificate and are skipped
+			final List<X509Certificate> decoded = pool.submit(() -> certs.parallelStream()
+					.map(CertValidationCommands::decode)
+					.collect(Collectors.toList())).get();
+
+			final List<X509Certificate> caCerts = new ArrayList<X509Certificate>();
+			final List<Integer> indexes = new ArrayList<Integer>();
+			for (int i = 0; i < decoded.size(); ++i)
+			{
+				final X509Certificate cert = decoded.get(i);
+				if (cert == null)
+					continue;
+
+				indexes.add(i);
+				if (cert.getBasicConstraints() >= 0)
+					caCerts.add(cert);
+			}
+
+			final ChainResolver resolver = new ChainResolver(anchorIndex, indexBySubject(caCerts));
+
+			results = pool.submit(() -> indexes.parallelStream()
+					.map(i -> resolver.validate(certs.get(i).getOwner(), decoded.get(i), now, horizon))
+					.collect(Collectors.toList())).get();
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to validate certificate chains: " + e.getMessage());
+			return;
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		final Map<CertChainValidation.Status, Integer> counts = new EnumMap<CertChainValidation.Status, Integer>(CertChainValidation.Status.class);
+		for (CertChainValidation.Status status : CertChainValidation.Status.values())
+			counts.put(status, 0);
+
+		final List<CertChainValidation> problems = new ArrayList<CertChainValidation>();
+		for (CertChainValidation result : results)
+		{
+			counts.put(result.getStatus(), counts.get(result.getStatus()) + 1);
+			if (result.getStatus() != CertChainValidation.Status.TRUSTED)
+				problems.add(result);
+		}
+
+		if (!problems.isEmpty())
+		{
+			problems.sort(Comparator.comparing(CertChainValidation::getStatus).reversed()
+					.thenComparing(CertChainValidation::getOwner, String.CASE_INSENSITIVE_ORDER));
+			validationPrinter.printRecords(problems);
+		}
+
+		System.out.println(results.size() + " certificates validated: " + counts.get(CertChainValidation.Status.TRUSTED) + " trusted, " +
+				counts.get(CertChainValidation.Status.EXPIRING) + " expiring within " + expiringDays + " days, " +
+				counts.get(CertChainValidation.Status.EXPIRED) + " expired, " + counts.get(CertChainValidation.Status.UNTRUSTED) + " untrusted");
+	}
+
+	/**
+	 * Loads the anchors of a domain, or of all domains, and their bundles.  Anchors that can not be decoded are skipped and described 
+	 * in the undecodable list.
+	 */
+	protected Collection<X509Certificate> loadAnchors(String domain, List<String> undecodable) throws Exception
+	{
+		final Collection<X509Certificate> anchors = new ArrayList<X509Certificate>();
+
+		final Collection<Anchor> domainAnchors = anchorService.getAnchors();
+		if (domainAnchors != null)
+			for (Anchor anchor : domainAnchors)
+				if (domain == null || domain.equalsIgnoreCase(anchor.getOwner()))
+				{
+					try
+					{
+						anchors.add(CertUtils.toX509Certificate(anchor.getCertificateData()));
+					}
+					catch (Exception e)
+					{
+						undecodable.add("anchor " + anchor.getId() + " of " + anchor.getOwner() + " : " + e.getMessage());
+					}
+				}
+
+		final Collection<TrustBundle> bundles = new ArrayList<TrustBundle>();
+		if (domain == null)
+		{
+			final Collection<TrustBundle> allBundles = bundleService.getTrustBundles(true);
+			if (allBundles != null)
+				bundles.addAll(allBundles);
+		}
+		else
+		{
+			final Collection<TrustBundleDomainReltn> reltns = bundleService.getTrustBundlesByDomain(domain, true);
+			if (reltns != null)
+				for (TrustBundleDomainReltn reltn : reltns)
+					bundles.add(reltn.getTrustBundle());
+		}
+
+		for (TrustBundle bundle : bundles)
+			if (bundle.getTrustBundleAnchors() != null)
+				for (TrustBundleAnchor anchor : bundle.getTrustBundleAnchors())
+				{
+					try
+					{
+						anchors.add(anchor.getAsX509Certificate());
+					}
+					catch (Exception e)
+					{
+						undecodable.add("anchor " + anchor.getThumbprint() + " of bundle " + bundle.getBundleName() + " : " + e.getMessage());
+					}
+				}
+
+		return anchors;
+	}
+
+	protected static boolean isDomainOwner(String owner, String domain)
+	{
+		if (owner == null)
+			return false;
+
+		return owner.equalsIgnoreCase(domain) || owner.toLowerCase().endsWith("@" + domain.toLowerCase());
+	}
+
+	protected static Map<X500Principal, List<X509Certificate>> indexBySubject(Collection<X509Certificate> certs)
+	{
+		final Map<X500Principal, List<X509Certificate>> index = new HashMap<X500Principal, List<X509Certificate>>();
+		for (X509Certificate cert : certs)
+			index.computeIfAbsent(cert.getSubjectX500Principal(), key -> new ArrayList<X509Certificate>()).add(cert);
+
+		return index;
+	}
+
+	protected static X509Certificate decode(Certificate cert)
+	{
+		try
+		{
+			return CertUtils.toCertContainer(cert.getData()).getCert();
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Builds and validates certificate paths using subject indexes of the anchors and of the CA certificates in the system.
+	 * The path from each CA certificate to an anchor is cached so that certificates sharing an issuer only resolve it once.  A missing
+	 * path depends on how much of the chain length limit was left, so it is only reused by lookups with at least as much left.
+	 */
+	protected static class ChainResolver
+	{
+		protected final Map<X500Principal, List<X509Certificate>> anchorIndex;
+		protected final Map<X500Principal, List<X509Certificate>> intermediateIndex;
+		protected final Map<X509Certificate, IssuerResolution> issuerCache;
+
+		public ChainResolver(Map<X500Principal, List<X509Certificate>> anchorIndex, Map<X500Principal, List<X509Certificate>> intermediateIndex)
+		{
+			this.anchorIndex = anchorIndex;
+			this.intermediateIndex = intermediateIndex;
+			this.issuerCache = new ConcurrentHashMap<X509Certificate, IssuerResolution>();
+		}
+
+		public CertChainValidation validate(String owner, X509Certificate cert, Date now, Date horizon)
+		{
+			final String tp = ThumbprintService.getInstance().getThumbprint(cert);
+
+			// the certificate may be an anchor itself
+			for (X509Certificate anchor : anchorIndex.getOrDefault(cert.getSubjectX500Principal(), Collections.emptyList()))
+				if (anchor.equals(cert))
+					return toResult(owner, tp, cert.getNotAfter(), now, horizon, "Certificate is a trust anchor");
+
+			final Chain chain = resolve(cert, 0);
+			if (chain == null)
+				return new CertChainValidation(owner, tp, CertChainValidation.Status.UNTRUSTED, cert.getNotAfter(), "No path to a trust anchor");
+
+			final List<X509Certificate> path = new ArrayList<X509Certificate>();
+			path.add(cert);
+			path.addAll(chain.intermediates);
+
+			Date expires = chain.anchor.getNotAfter();
+			for (X509Certificate pathCert : path)
+				if (pathCert.getNotAfter().before(expires))
+					expires = pathCert.getNotAfter();
+
+			if (expires.before(now))
+				return new CertChainValidation(owner, tp, CertChainValidation.Status.EXPIRED, expires, "Chain expired");
+
+			try
+			{
+				final CertPath certPath = CertificateFactory.getInstance("X.509").generateCertPath(path);
+				final PKIXParameters params = new PKIXParameters(Collections.singleton(new TrustAnchor(chain.anchor, null)));
+				params.setRevocationEnabled(false);
+				params.setDate(now);
+
+				CertPathValidator.getInstance("PKIX").validate(certPath, params);
+			}
+			catch (CertPathValidatorException e)
+			{
+				return new CertChainValidation(owner, tp, CertChainValidation.Status.UNTRUSTED, expires, e.getMessage());
+			}
+			catch (Exception e)
+			{
+				return new CertChainValidation(owner, tp, CertChainValidation.Status.UNTRUSTED, expires, "Validation error: " + e.getMessage());
+			}
+
+			return toResult(owner, tp, expires, now, horizon, "Anchor " + chain.anchor.getSubjectX500Principal().getName());
+		}
+
+		protected CertChainValidation toResult(String owner, String tp, Date expires, Date now, Date horizon, String detail)
+		{
+			if (expires.before(now))
+				return new CertChainValidation(owner, tp, CertChainValidation.Status.EXPIRED, expires, detail);
+			else if (expires.before(horizon))
+				return new CertChainValidation(owner, tp, CertChainValidation.Status.EXPIRING, expires, detail);
+			else
+				return new CertChainValidation(owner, tp, CertChainValidation.Status.TRUSTED, expires, detail);
+		}
+
+		/**
+		 * Finds the chain of intermediates above a certificate that ends at an anchor.
+		 * @return The chain or null if the certificate does not chain to an anchor.
+		 */
+		protected Chain resolve(X509Certificate cert, int depth)
+		{
+			final X500Principal issuerName = cert.getIssuerX500Principal();
+
+			for (X509Certificate anchor : anchorIndex.getOrDefault(issuerName, Collections.emptyList()))
+				if (isSignedBy(cert, anchor))
+					return new Chain(Collections.emptyList(), anchor);
+
+			if (depth >= MAX_CHAIN_LENGTH)
+				return null;
+
+			for (X509Certificate issuer : intermediateIndex.getOrDefault(issuerName, Collections.emptyList()))
+			{
+				if (issuer.equals(cert) || !isSignedBy(cert, issuer))
+					continue;
+
+				IssuerResolution resolution = issuerCache.get(issuer);
+				if (resolution == null || (resolution.chain == null && resolution.depth > depth + 1))
+				{
+					resolution = new IssuerResolution(resolve(issuer, depth + 1), depth + 1);
+					issuerCache.put(issuer, resolution);
+				}
+
+				if (resolution.chain != null)
+				{
+					final List<X509Certificate> intermediates = new ArrayList<X509Certificate>();
+					intermediates.add(issuer);
+					intermediates.addAll(resolution.chain.intermediates);
+					return new Chain(intermediates, resolution.chain.anchor);
+				}
+			}
+
+			return null;
+		}
+
+		protected static boolean isSignedBy(X509Certificate cert, X509Certificate issuer)
+		{
+			try
+			{
+				cert.verify(issuer.getPublicKey());
+				return true;
+			}
+			catch (Exception e)
+			{
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * The chain resolved for an issuer and the depth at which it was resolved.
+	 */
+	protected static class IssuerResolution
+	{
+		protected final Chain chain;
+		protected final int depth;
+
+		public IssuerResolution(Chain chain, int depth)
+		{
+			this.chain = chain;
+			this.depth = depth;
+		}
+	}
+
+	protected static class Chain
+	{
+		protected final List<X509Certificate> intermediates;
+		protected final X509Certificate anchor;
+
+		public Chain(List<X509Certificate> intermediates, X509Certificate anchor)
+		{
+			this.intermediates = intermediates;
+			this.anchor = anchor;
+		}
+	}
+}
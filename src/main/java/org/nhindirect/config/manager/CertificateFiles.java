@@ -0,0 +1,100 @@
+package org.nhindirect.config.manager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Utility methods for reading certificates from the local file system.  Files may contain a single DER or PEM encoded
+ * certificate, a PEM bundle, or a PKCS7 certificate bundle.
+ */
+public class CertificateFiles
+{
+	private CertificateFiles()
+	{
+
+	}
+
+	/**
+	 * Lists the files to process for a location.  If the location is a directory, all regular files directly in the directory
+	 * are returned sorted by name.  Otherwise the location itself is returned.
+	 * @param location A file or directory.
+	 * @return The files at the location.
+	 * @throws IOException If the location does not exist.
+	 */
+	public static List<File> listFiles(File location) throws IOException
+	{
+		if (!location.exists())
+			throw new IOException("File or directory " + location.getAbsolutePath() + " does not exist");
+
+		if (!location.isDirectory())
+			return Collections.singletonList(location);
+
+		final File[] files = location.listFiles(File::isFile);
+		if (files == null)
+			throw new IOException("Could not list directory " + location.getAbsolutePath());
+
+		Arrays.sort(files);
+		return Arrays.asList(files);
+	}
+
+	/**
+	 * Reads all certificates from a file.
+	 * @param file The file containing one or more certificates.
+	 * @return The certificates in the file.
+	 * @throws IOException If the file cannot be read.
+	 * @throws CertificateException If the file does not contain valid certificates.
+	 */
+	public static List<X509Certificate> readCertificates(File file) throws IOException, CertificateException
+	{
+		InputStream inStr = null;
+		try
+		{
+			inStr = new BufferedInputStream(new FileInputStream(file));
+			return readCertificates(inStr);
+		}
+		finally
+		{
+			IOUtils.closeQuietly(inStr);
+		}
+	}
+
+	/**
+	 * Reads all certificates from an encoded byte array.
+	 * @param data DER, PEM or PKCS7 encoded certificates.
+	 * @return The certificates in the data.
+	 * @throws CertificateException If the data does not contain valid certificates.
+	 */
+	public static List<X509Certificate> readCertificates(byte[] data) throws CertificateException
+	{
+		return readCertificates(new ByteArrayInputStream(data));
+	}
+
+	protected static List<X509Certificate> readCertificates(InputStream inStr) throws CertificateException
+	{
+		final Collection<? extends java.security.cert.Certificate> certs =
+				CertificateFactory.getInstance("X.509").generateCertificates(inStr);
+
+		if (certs.isEmpty())
+			throw new CertificateException("No certificates found");
+
+		final List<X509Certificate> retVal = new ArrayList<X509Certificate>(certs.size());
+		for (java.security.cert.Certificate cert : certs)
+			retVal.add((X509Certificate)cert);
+
+		return retVal;
+	}
+}
@@ -111,11 +111,17 @@ public class ConfigManager implements CommandLineRunner
 
 		commands.register(new CertCommands(certService));
 		
+		commands.register(new CertValidationCommands(certService, anchorService, bundleService));
+		
 		commands.register(new DomainCommands(domainService));
 		
 		commands.register(new AnchorCommands(anchorService, domainService));
 		
+		commands.register(new AnchorReportCommands(anchorService, domainService, bundleService));
+		
 		commands.register(new PolicyCommands(certPolicyService, domainService));
+		
+		commands.register(new PolicySimulationCommands(certPolicyService, certService, anchorService, domainService, bundleService));
 	
 		commands.register(new TrustBundleCommands(bundleService, domainService));
 	
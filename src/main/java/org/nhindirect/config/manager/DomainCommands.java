@@ -1,6 +1,8 @@
 package org.nhindirect.config.manager;
 
 import java.util.Collection;
+import java.util.Locale;
+import java.util.stream.Stream;
 
 import org.nhind.config.rest.DomainService;
 import org.nhindirect.common.tooling.Command;
@@ -12,7 +14,12 @@ import org.nhindirect.config.model.EntityStatus;
 
 public class DomainCommands
 {
-    private static final String LIST_DOMAINS_USAGE = "Lists domains in the system";
+    private static final String LIST_DOMAINS_USAGE = "Lists domains in the system" +
+    		"\r\n  [--status status] [--prefix text] [--offset N] [--limit N]" +
+            "\r\n\t --status status: Optional.  Only list domains with the status NEW, ENABLED, or DISABLED." +
+            "\r\n\t --prefix text: Optional.  Only list domains whose name starts with the text (case insensitive)." +
+            "\r\n\t --offset N: Optional.  Number of matching domains to skip.  Defaults to 0." +
+            "\r\n\t --limit N: Optional.  Maximum number of domains to list.  Defaults to all.";
 	
     private static final String ADD_DOMAIN_USAGE = "Adds a domain to the system." +
     		"\r\n  domainName postmasterEmail " +
@@ -23,6 +30,8 @@ public class DomainCommands
     		"\r\n  name " +
             "\r\n\t name: The name of the domain.";
     
+    protected static final int DOMAIN_PRINT_BATCH_SIZE = 64;
+    
 	protected DomainService domainService;
 	
 	protected final DomainPrinter domainPrinter;
@@ -37,17 +46,58 @@ public class DomainCommands
 	@Command(name = "ListDomains", usage = LIST_DOMAINS_USAGE)
     public void listDomains(String[] args)
     {
-		// get them all
+		EntityStatus status = null;
+		String prefix = "";
+		long offset = 0;
+		long limit = Long.MAX_VALUE;
+		try
+		{
+			for (int i = 0; i < args.length; ++i)
+			{
+				if (args[i].equalsIgnoreCase("--status") && i + 1 < args.length)
+					status = EntityStatus.valueOf(args[++i].toUpperCase(Locale.ENGLISH));
+				else if (args[i].equalsIgnoreCase("--prefix") && i + 1 < args.length)
+					prefix = args[++i];
+				else if (args[i].equalsIgnoreCase("--offset") && i + 1 < args.length)
+					offset = Long.parseLong(args[++i]);
+				else if (args[i].equalsIgnoreCase("--limit") && i + 1 < args.length)
+					limit = Long.parseLong(args[++i]);
+				else
+				{
+					System.out.println("Unknown option " + args[i]);
+					return;
+				}
+			}
+			
+			if (offset < 0 || limit < 0)
+				throw new IllegalArgumentException("--offset and --limit must not be negative");
+		}
+		catch (Exception e)
+		{
+			System.out.println("Invalid option value: " + e.getMessage());
+			return;
+		}
+		
 		try
 		{
-			final Collection<Domain> domains = domainService.searchDomains("", null);
+			// the service filters on status and name but does not page, so the prefix, offset, and limit are applied while rows are written
+			final Collection<Domain> domains = domainService.searchDomains(prefix, status);
 			if (domains == null || domains.size() == 0)
 			{
-				System.out.println("No domains have been created.");
+				System.out.println((status == null && prefix.isEmpty()) ? "No domains have been created." : "No matching domains found.");
 				return;
 			}
 			
-			domainPrinter.printRecords(domains);
+			Stream<Domain> rows = domains.stream();
+			if (!prefix.isEmpty())
+			{
+				final String text = prefix.toLowerCase(Locale.ENGLISH);
+				rows = rows.filter(domain -> domain.getDomainName().toLowerCase(Locale.ENGLISH).startsWith(text));
+			}
+			
+			final int printed = domainPrinter.printRecords(rows.skip(offset).limit(limit).iterator(), DOMAIN_PRINT_BATCH_SIZE);
+			if (printed == 0)
+				System.out.println("No matching domains found.");
 		}
 		catch (Exception e)
 		{
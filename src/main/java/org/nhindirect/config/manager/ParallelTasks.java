@@ -0,0 +1,191 @@
+package org.nhindirect.config.manager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs independent units of work against the configuration service on a bounded pool of threads.
+ * Failures are captured per item so that one bad record does not abort an entire bulk command.
+ */
+public class ParallelTasks
+{
+	public static final int DEFAULT_PARALLELISM = 8;
+
+	/**
+	 * A unit of work executed for a single item.
+	 */
+	public interface Task<T, R>
+	{
+		public R execute(T item) throws Exception;
+	}
+
+	/**
+	 * The result of executing a task for a single item.
+	 */
+	public static class Outcome<T, R>
+	{
+		protected final T item;
+		protected final R result;
+		protected final Exception error;
+		protected final long elapsedMillis;
+
+		public Outcome(T item, R result, Exception error, long elapsedMillis)
+		{
+			this.item = item;
+			this.result = result;
+			this.error = error;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public T getItem()
+		{
+			return item;
+		}
+
+		public R getResult()
+		{
+			return result;
+		}
+
+		public Exception getError()
+		{
+			return error;
+		}
+
+		public long getElapsedMillis()
+		{
+			return elapsedMillis;
+		}
+
+		public boolean isSuccess()
+		{
+			return error == null;
+		}
+	}
+
+	private ParallelTasks()
+	{
+
+	}
+
+	/**
+	 * Executes a task for every item using at most the given number of threads.
+	 * @param items The items to process.
+	 * @param parallelism The maximum number of tasks that run at the same time.
+	 * @param task The work to perform on each item.
+	 * @return The outcome of each item in the same order as the provided items.
+	 */
+	public static <T, R> List<Outcome<T, R>> invokeAll(Collection<T> items, int parallelism, final Task<T, R> task)
+	{
+		final List<Outcome<T, R>> outcomes = new ArrayList<Outcome<T, R>>(items.size());
+		if (items.isEmpty())
+			return outcomes;
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, items.size())));
+		try
+		{
+			final List<T> submitted = new ArrayList<T>(items.size());
+			final List<Future<Outcome<T, R>>> futures = new ArrayList<Future<Outcome<T, R>>>(items.size());
+			for (final T item : items)
+			{
+				submitted.add(item);
+				futures.add(executor.submit(() -> execute(item, task)));
+			}
+
+			for (int i = 0; i < futures.size(); ++i)
+			{
+				try
+				{
+					outcomes.add(futures.get(i).get());
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					outcomes.add(new Outcome<T, R>(submitted.get(i), null, e, 0));
+				}
+				catch (ExecutionException e)
+				{
+					outcomes.add(new Outcome<T, R>(submitted.get(i), null, new Exception(e.getCause()), 0));
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		return outcomes;
+	}
+
+	/**
+	 * Executes a task for every item using the default parallelism.
+	 * @param items The items to process.
+	 * @param task The work to perform on each item.
+	 * @return The outcome of each item in the same order as the provided items.
+	 */
+	public static <T, R> List<Outcome<T, R>> invokeAll(Collection<T> items, final Task<T, R> task)
+	{
+		return invokeAll(items, DEFAULT_PARALLELISM, task);
+	}
+
+	/**
+	 * Parses a parallelism argument, falling back to the default for missing or invalid values.
+	 * @param value The raw argument value.
+	 * @return A parallelism of at least one.
+	 */
+	public static int parseParallelism(String value)
+	{
+		try
+		{
+			return Math.max(1, Integer.parseInt(value.trim()));
+		}
+		catch (Exception e)
+		{
+			return DEFAULT_PARALLELISM;
+		}
+	}
+
+	/**
+	 * Waits for a future and rethrows the original exception of a failed task rather than the wrapping ExecutionException.
+	 */
+	public static <T> T getResult(Future<T> future) throws Exception
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Treats a null collection returned by the configuration service as empty.
+	 */
+	public static <T> Collection<T> nullToEmpty(Collection<T> values)
+	{
+		return (values == null) ? Collections.<T>emptyList() : values;
+	}
+
+	protected static <T, R> Outcome<T, R> execute(T item, Task<T, R> task)
+	{
+		final long start = System.nanoTime();
+		try
+		{
+			final R result = task.execute(item);
+			return new Outcome<T, R>(item, result, null, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+		catch (Exception e)
+		{
+			return new Outcome<T, R>(item, null, e, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+	}
+}
@@ -1,10 +1,46 @@
 package org.nhindirect.config.manager;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.nhind.config.rest.CertPolicyService;
 import org.nhind.config.rest.DomainService;
@@ -20,10 +56,17 @@ import org.nhindirect.config.model.CertPolicyGroup;
 import org.nhindirect.config.model.CertPolicyGroupUse;
 import org.nhindirect.config.model.CertPolicyUse;
 import org.nhindirect.config.model.Domain;
+import org.nhindirect.policy.PolicyExpression;
+import org.nhindirect.policy.PolicyFilter;
+import org.nhindirect.policy.PolicyFilterFactory;
 import org.nhindirect.policy.PolicyLexicon;
 import org.nhindirect.policy.PolicyLexiconParser;
 import org.nhindirect.policy.PolicyLexiconParserFactory;
 import org.nhindirect.policy.PolicyParseException;
+import org.nhindirect.policy.PolicyProcessException;
+import org.nhindirect.policy.PolicyRequiredException;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
 
 
 public class PolicyCommands 
@@ -36,6 +79,42 @@ public class PolicyCommands
             "\r\n\t policyDefFile: Fully qualified path and file name of the policy definition file.  Place the file name in quotes (\"\") if there are spaces in the path or name." +
             "\r\n\t [lexicon]: Optional lexicon of the policy definition.  Default to SIMPLE_TEXT_V1 if not supplied.";   
    
+    private static final String VALIDATE_POLICIES_USAGE = "Validates the syntax of all policy definition files in a directory without importing them." +
+    		"\r\n  policyDir [lexicon] [parallel]" +
+            "\r\n\t policyDir: Fully qualified path of a directory of policy definition files, or of a single file.  Place the path in quotes (\"\") if there are spaces in the path or name." +
+            "\r\n\t [lexicon]: Optional lexicon of all the policy definitions.  Use AUTO or omit to detect the lexicon of each file from its extension and content." +
+            "\r\n\t [parallel]: Optional.  Number of files parsed at the same time.  Defaults to the number of processors.";
+   
+    private static final String BENCH_POLICY_USAGE = "Measures the cost of evaluating a policy definition against a corpus of certificates without importing the policy.  " +
+    		"Reports the time and memory allocated per evaluation and the number of certificates that comply with the policy." +
+    		"\r\n  policyDefFile certDir [lexicon] [passes]" +
+            "\r\n\t policyDefFile: Fully qualified path and file name of the policy definition file.  Place the file name in quotes (\"\") if there are spaces in the path or name." +
+            "\r\n\t certDir: Fully qualified path of a directory of DER, PEM, or PKCS7 certificate files, or of a single file." +
+            "\r\n\t [lexicon]: Optional lexicon of the policy definition.  Use AUTO or omit to detect the lexicon from the file extension and content." +
+            "\r\n\t [passes]: Optional.  Number of measured passes over the corpus.  Defaults to 100.";
+   
+    private static final String SYNC_POLICIES_USAGE = "Synchronizes policies, policy groups, policy uses, and domain bindings with the definitions in a YAML file.  " +
+    		"Policies and groups that are not in the file are kept unless --prune is given.  Names are matched without regard to case." +
+    		"\r\n  definitionFile [--dryRun] [--prune] [--parallel N]" +
+            "\r\n\t definitionFile: Fully qualified path and file name of the YAML file.  The file contains a policies list where each entry has a name, " +
+            "a file with the policy definition, and an optional lexicon, and a groups list where each entry has a name, a uses list with policy, use, incoming, " +
+            "and outgoing values, and a domains list." +
+            "\r\n\t --dryRun: Optional.  Only print the changes that would be made." +
+            "\r\n\t --prune: Optional.  Deletes policies and groups that are not in the file, and unbinds the deleted groups from their domains." +
+            "\r\n\t --parallel N: Optional.  Maximum number of concurrent requests to the configuration service.  Defaults to " + ParallelTasks.DEFAULT_PARALLELISM + ".";
+   
+    private static final String POLICY_USAGE_GRAPH_USAGE = "Shows which policy groups and domains use a policy, and which groups and policies apply to a domain.  " +
+    		"Without a name, every policy is listed with its groups and domains." +
+    		"\r\n  [name] [--dot file] [--csv file]" +
+            "\r\n\t [name]: Optional.  Name of a policy, policy group, or domain.  Place the name in quotes (\"\") if there are spaces in the name." +
+            "\r\n\t --dot file: Optional.  Writes the whole graph to a file in the Graphviz DOT language." +
+            "\r\n\t --csv file: Optional.  Writes the whole graph to a CSV file with one row per policy, group, and domain path.";
+   
+    private static final String EXPORT_POLICIES_USAGE = "Exports the definitions of all policies to a directory or a zip file.  Each definition is written with the file extension of its lexicon, " +
+    		"and a manifest.csv file lists the name, lexicon, file, and SHA-256 digest of each policy." +
+    		"\r\n  exportLocation" +
+            "\r\n\t exportLocation: Fully qualified path of a directory, or of a file ending in .zip.  Place the path in quotes (\"\") if there are spaces in the path or name.";
+   
     private static final String DELETE_POLICY_USAGE = "Deletes a policy from the system by policy name." +
     		"\r\n  policyName " +
             "\r\n\t policyName: Name of the policy.  Place the policy name in quotes (\"\") if there are spaces in the name.";
@@ -81,6 +160,12 @@ public class PolicyCommands
             "\r\n\t groupName: Name of the policy group to delete from the domain.  Place the policy group name in quotes (\"\") if there are spaces in the name." +
     		"\r\n\t domainName: Name of the domain to delete the policy group from.";
     
+    protected static final String POLICY_MANIFEST_FILE = "manifest.csv";
+    
+    protected static final String POLICY_MANIFEST_HEADER = "Policy Name,Lexicon,File,SHA-256";
+    
+    protected static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+    
 	protected CertPolicyService certPolService;
 	protected DomainService domainService;
 	
@@ -212,6 +297,979 @@ public class PolicyCommands
 		}	
 	}		
 	
+	@Command(name = "ValidatePolicies", usage = VALIDATE_POLICIES_USAGE)
+    public void validatePolicies(String[] args)
+	{
+		final String location = StringArrayUtil.getRequiredValue(args, 0);
+		final String lexicon = StringArrayUtil.getOptionalValue(args, 1, "AUTO");
+		final String parallelArg = StringArrayUtil.getOptionalValue(args, 2, "");
+		int parallel;
+		try
+		{
+			parallel = parallelArg.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(parallelArg.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			parallel = 0;
+		}
+		
+		if (parallel < 1)
+		{
+			System.out.println("Invalid parallel value " + parallelArg + ".  The value must be a positive number of files.");
+			return;
+		}
+		
+		PolicyLexicon lex = null;
+		if (!lexicon.equalsIgnoreCase("AUTO"))
+		{
+			try
+			{
+				lex = PolicyLexicon.valueOf(lexicon);
+			}
+			catch (Exception e)
+			{
+				System.out.println("Invalid lexicon name.");
+				return;
+			}
+		}
+		final PolicyLexicon forcedLexicon = lex;
+		
+		final List<File> files;
+		try
+		{
+			files = CertificateFiles.listFiles(new File(location));
+			if (files.isEmpty())
+			{
+				System.out.println("No policy files found in " + location);
+				return;
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error reading " + location + " : " + e.getMessage());
+			return;
+		}
+		
+		final List<ParallelTasks.Outcome<File, PolicyValidation>> outcomes = ParallelTasks.invokeAll(files, parallel, file ->
+		{
+			final byte[] policyData = FileUtils.readFileToByteArray(file);
+			final PolicyValidation retVal = new PolicyValidation();
+			retVal.lexicon = (forcedLexicon != null) ? forcedLexicon : PolicyParsers.detectLexicon(file.getName(), policyData);
+			
+			final long start = System.nanoTime();
+			try
+			{
+				PolicyParsers.parse(policyData, retVal.lexicon);
+			}
+			catch (PolicyParseException e)
+			{
+				retVal.error = PolicyParsers.describeError(e, policyData);
+			}
+			retVal.parseNanos = System.nanoTime() - start;
+			
+			return retVal;
+		});
+		
+		int invalid = 0;
+		long totalNanos = 0;
+		System.out.println(String.format("%-50s %-15s %-8s %10s  %s", "File", "Lexicon", "Status", "Parse ms", "Error"));
+		for (ParallelTasks.Outcome<File, PolicyValidation> outcome : outcomes)
+		{
+			final String fileName = outcome.getItem().getName();
+			if (!outcome.isSuccess())
+			{
+				++invalid;
+				System.out.println(String.format("%-50s %-15s %-8s %10s  %s", fileName, "", "ERROR", "", "Error reading file: " + outcome.getError().getMessage()));
+				continue;
+			}
+			
+			final PolicyValidation validation = outcome.getResult();
+			totalNanos += validation.parseNanos;
+			if (validation.error != null)
+				++invalid;
+			
+			System.out.println(String.format("%-50s %-15s %-8s %10.3f  %s", fileName, validation.lexicon, (validation.error == null) ? "OK" : "INVALID", 
+					validation.parseNanos / 1000000.0, (validation.error == null) ? "" : validation.error));
+		}
+		
+		System.out.println(String.format("%d of %d policy files are valid.  Total parse time %.3f ms", files.size() - invalid, files.size(), totalNanos / 1000000.0));
+	}
+	
+	protected static class PolicyValidation
+	{
+		protected PolicyLexicon lexicon;
+		protected String error;
+		protected long parseNanos;
+	}
+	
+	@Command(name = "BenchPolicy", usage = BENCH_POLICY_USAGE)
+    public void benchPolicy(String[] args)
+	{
+		final String fileLoc = StringArrayUtil.getRequiredValue(args, 0);
+		final String certLoc = StringArrayUtil.getRequiredValue(args, 1);
+		final String lexicon = StringArrayUtil.getOptionalValue(args, 2, "AUTO");
+		final String passesArg = StringArrayUtil.getOptionalValue(args, 3, "100");
+		int passes;
+		try
+		{
+			passes = Integer.parseInt(passesArg.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			passes = 0;
+		}
+		
+		if (passes < 1)
+		{
+			System.out.println("Invalid passes " + passesArg + ".  The value must be a positive number of passes.");
+			return;
+		}
+		
+		final PolicyExpression expression;
+		byte[] policyData = null;
+		try
+		{
+			policyData = FileUtils.readFileToByteArray(new File(fileLoc));
+			final PolicyLexicon lex = lexicon.equalsIgnoreCase("AUTO") ? PolicyParsers.detectLexicon(fileLoc, policyData) : PolicyLexicon.valueOf(lexicon);
+			
+			final long start = System.nanoTime();
+			expression = PolicyParsers.parse(policyData, lex);
+			System.out.println(String.format("Compiled %s policy in %.3f ms", lex, (System.nanoTime() - start) / 1000000.0));
+		}
+		catch (PolicyParseException e)
+		{
+			System.out.println("Syntax error in policy file " + fileLoc + " : " + PolicyParsers.describeError(e, policyData));
+			return;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.out.println("Invalid lexicon name.");
+			return;
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error reading file " + fileLoc + " : " + e.getMessage());
+			return;
+		}
+		
+		final List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		try
+		{
+			for (File file : CertificateFiles.listFiles(new File(certLoc)))
+			{
+				try
+				{
+					certs.addAll(CertificateFiles.readCertificates(file));
+				}
+				catch (CertificateException e)
+				{
+					System.out.println("Skipping " + file.getName() + " : " + e.getMessage());
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error reading " + certLoc + " : " + e.getMessage());
+			return;
+		}
+		
+		if (certs.isEmpty())
+		{
+			System.out.println("No certificates found in " + certLoc);
+			return;
+		}
+		
+		final PolicyFilter filter = PolicyFilterFactory.getInstance();
+		
+		// the first pass records the outcome for each certificate and warms up the evaluation code
+		int compliant = 0;
+		int notCompliant = 0;
+		int requiredMissing = 0;
+		int errors = 0;
+		for (X509Certificate cert : certs)
+		{
+			try
+			{
+				if (filter.isCompliant(cert, expression))
+					++compliant;
+				else
+					++notCompliant;
+			}
+			catch (PolicyRequiredException e)
+			{
+				++requiredMissing;
+			}
+			catch (PolicyProcessException e)
+			{
+				++errors;
+			}
+		}
+		for (int i = 1; i < Math.max(2, passes / 10); ++i)
+			evaluateCorpus(filter, certs, expression);
+		
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		final boolean measureAllocations = threadBean instanceof com.sun.management.ThreadMXBean && 
+				((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemorySupported() &&
+				((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemoryEnabled();
+		
+		final long threadId = Thread.currentThread().getId();
+		final long startBytes = measureAllocations ? ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(threadId) : 0;
+		final long start = System.nanoTime();
+		int sink = 0;
+		for (int i = 0; i < passes; ++i)
+			sink += evaluateCorpus(filter, certs, expression);
+		final long elapsed = System.nanoTime() - start;
+		final long allocated = measureAllocations ? ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(threadId) - startBytes : 0;
+		
+		final long evaluations = (long)passes * certs.size();
+		System.out.println("Certificates:        " + certs.size());
+		System.out.println(String.format("Compliant:           %d (%.1f%%)", compliant, compliant * 100.0 / certs.size()));
+		System.out.println(String.format("Not compliant:       %d (%.1f%%)", notCompliant, notCompliant * 100.0 / certs.size()));
+		System.out.println(String.format("Required missing:    %d (%.1f%%)", requiredMissing, requiredMissing * 100.0 / certs.size()));
+		System.out.println(String.format("Evaluation errors:   %d (%.1f%%)", errors, errors * 100.0 / certs.size()));
+		System.out.println("Evaluations:         " + evaluations + " (" + passes + " passes, " + (sink / passes) + " compliant per pass)");
+		System.out.println(String.format("Time per evaluation: %.1f ns", (double)elapsed / evaluations));
+		System.out.println("Bytes per evaluation: " + (measureAllocations ? String.format("%.1f", (double)allocated / evaluations) : "not supported by this JVM"));
+	}
+	
+	/**
+	 * Evaluates a policy against every certificate of a corpus.
+	 * @return The number of compliant certificates.
+	 */
+	protected static int evaluateCorpus(PolicyFilter filter, List<X509Certificate> certs, PolicyExpression expression)
+	{
+		int retVal = 0;
+		for (X509Certificate cert : certs)
+		{
+			try
+			{
+				if (filter.isCompliant(cert, expression))
+					++retVal;
+			}
+			catch (PolicyProcessException e)
+			{
+				// outcomes were recorded on the first pass
+			}
+		}
+		
+		return retVal;
+	}
+	
+	@Command(name = "SyncPolicies", usage = SYNC_POLICIES_USAGE)
+    public void syncPolicies(String[] args)
+	{
+		final String definitionFile = StringArrayUtil.getRequiredValue(args, 0);
+		boolean dryRun = false;
+		boolean prune = false;
+		int parallel = ParallelTasks.DEFAULT_PARALLELISM;
+		for (int i = 1; i < args.length; ++i)
+		{
+			if (args[i].equalsIgnoreCase("--dryRun"))
+				dryRun = true;
+			else if (args[i].equalsIgnoreCase("--prune"))
+				prune = true;
+			else if (args[i].equalsIgnoreCase("--parallel") && i + 1 < args.length)
+				parallel = ParallelTasks.parseParallelism(args[++i]);
+			else
+			{
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		
+		final PolicyDefinitions definitions;
+		try
+		{
+			definitions = readPolicyDefinitions(new File(definitionFile));
+		}
+		catch (PolicyParseException e)
+		{
+			System.out.println("Syntax error in policy definitions : " + PolicyParsers.describeError(e));
+			return;
+		}
+		catch (Exception e)
+		{
+			System.out.println("Error reading policy definitions from " + definitionFile + " : " + e.getMessage());
+			return;
+		}
+		
+		// the policy and group listings are fetched while the group bindings of every domain are fetched
+		// policy and group names are matched without regard to case, as are domain names
+		final Map<String, CertPolicy> policies = new TreeMap<String, CertPolicy>(String.CASE_INSENSITIVE_ORDER);
+		final Map<String, CertPolicyGroup> groups = new TreeMap<String, CertPolicyGroup>(String.CASE_INSENSITIVE_ORDER);
+		final Map<String, String> domainNames = new HashMap<String, String>();
+		final Map<String, Set<String>> bindings = new TreeMap<String, Set<String>>(String.CASE_INSENSITIVE_ORDER);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			final Future<Collection<CertPolicy>> policiesFuture = executor.submit(() -> certPolService.getPolicies());
+			final Future<Collection<CertPolicyGroup>> groupsFuture = executor.submit(() -> certPolService.getPolicyGroups());
+			
+			final Collection<Domain> domains = domainService.searchDomains("", null);
+			if (domains != null)
+			{
+				for (Domain domain : domains)
+					domainNames.put(domain.getDomainName().toLowerCase(Locale.ENGLISH), domain.getDomainName());
+				
+				for (ParallelTasks.Outcome<Domain, Collection<CertPolicyGroup>> outcome : 
+					ParallelTasks.invokeAll(domains, parallel, domain -> certPolService.getPolicyGroupsByDomain(domain.getDomainName())))
+				{
+					if (!outcome.isSuccess())
+						throw outcome.getError();
+					
+					if (outcome.getResult() != null)
+						for (CertPolicyGroup group : outcome.getResult())
+							bindings.computeIfAbsent(group.getPolicyGroupName(), k -> new HashSet<String>()).add(outcome.getItem().getDomainName());
+				}
+			}
+			
+			for (CertPolicy policy : ParallelTasks.nullToEmpty(ParallelTasks.getResult(policiesFuture)))
+				policies.put(policy.getPolicyName(), policy);
+			for (CertPolicyGroup group : ParallelTasks.nullToEmpty(ParallelTasks.getResult(groupsFuture)))
+				groups.put(group.getPolicyGroupName(), group);
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup policies, groups, and domains: " + e.getMessage());
+			return;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		
+		// resolve the bound domain names to the names stored in the system
+		final Set<String> missingDomains = new TreeSet<String>();
+		for (GroupDefinition group : definitions.groups.values())
+		{
+			final Set<String> resolved = new HashSet<String>();
+			for (String domain : group.domains)
+			{
+				final String domainName = domainNames.get(domain.toLowerCase(Locale.ENGLISH));
+				if (domainName == null)
+					missingDomains.add(domain);
+				else
+					resolved.add(domainName);
+			}
+			group.domains = resolved;
+		}
+		if (!missingDomains.isEmpty())
+		{
+			System.out.println("The following domains do not exist in the system: " + String.join(", ", missingDomains));
+			return;
+		}
+		
+		// changes are applied in dependency order: bindings and uses are removed before the groups and policies they refer to, 
+		// and policies and groups are added before the uses and bindings that refer to them
+		final List<PolicyOperation> unbind = new ArrayList<PolicyOperation>();
+		final List<PolicyOperation> removeUses = new ArrayList<PolicyOperation>();
+		final List<PolicyOperation> deletes = new ArrayList<PolicyOperation>();
+		final List<PolicyOperation> adds = new ArrayList<PolicyOperation>();
+		final List<PolicyOperation> addUses = new ArrayList<PolicyOperation>();
+		final List<PolicyOperation> bind = new ArrayList<PolicyOperation>();
+		
+		final Map<String, CertPolicy> replacedPolicies = new TreeMap<String, CertPolicy>(String.CASE_INSENSITIVE_ORDER);
+		int kept = 0;
+		for (CertPolicy policy : definitions.policies.values())
+		{
+			final CertPolicy existing = policies.get(policy.getPolicyName());
+			if (existing == null)
+				adds.add(new PolicyOperation("ADD POLICY " + policy.getPolicyName(), () -> certPolService.addPolicy(policy)));
+			else if (existing.getLexicon() != policy.getLexicon() || !Arrays.equals(existing.getPolicyData(), policy.getPolicyData()))
+			{
+				// policies can not be updated in place, so a changed policy is deleted and added again along with its uses
+				replacedPolicies.put(existing.getPolicyName(), policy);
+				deletes.add(new PolicyOperation("DELETE POLICY " + existing.getPolicyName() + " (changed)", 
+						() -> certPolService.deletePolicy(existing.getPolicyName())));
+			}
+		}
+		for (String policyName : policies.keySet())
+		{
+			if (definitions.policies.containsKey(policyName))
+				continue;
+			
+			if (prune)
+				deletes.add(new PolicyOperation("DELETE POLICY " + policyName, () -> certPolService.deletePolicy(policyName)));
+			else
+				++kept;
+		}
+		
+		// groups that lose the uses of a changed policy until the policy is added again
+		final Map<String, Set<String>> replacedUseGroups = new TreeMap<String, Set<String>>(String.CASE_INSENSITIVE_ORDER);
+		for (CertPolicyGroup existing : groups.values())
+		{
+			final String groupName = existing.getPolicyGroupName();
+			final GroupDefinition group = definitions.groups.get(groupName);
+			if (group == null && !prune)
+				++kept;
+			
+			final Map<String, CertPolicyGroupUse> existingUses = new HashMap<String, CertPolicyGroupUse>();
+			if (existing.getPolicies() != null)
+				for (CertPolicyGroupUse use : existing.getPolicies())
+					existingUses.put(toUseKey(use), use);
+			
+			// a group that is kept out of the file still has the uses of a changed policy restored
+			final Map<String, CertPolicyGroupUse> uses;
+			if (group != null)
+				uses = group.uses;
+			else if (prune)
+				uses = Collections.<String, CertPolicyGroupUse>emptyMap();
+			else
+			{
+				uses = new HashMap<String, CertPolicyGroupUse>();
+				for (Map.Entry<String, CertPolicyGroupUse> use : existingUses.entrySet())
+				{
+					final CertPolicy policy = replacedPolicies.get(use.getValue().getPolicy().getPolicyName());
+					if (policy != null)
+						uses.put(use.getKey(), copyUse(use.getValue(), policy));
+					else
+						uses.put(use.getKey(), use.getValue());
+				}
+			}
+			
+			for (Map.Entry<String, CertPolicyGroupUse> use : existingUses.entrySet())
+			{
+				final String policyName = use.getValue().getPolicy().getPolicyName();
+				if (!uses.containsKey(use.getKey()) || replacedPolicies.containsKey(policyName))
+				{
+					removeUses.add(new PolicyOperation("REMOVE USE " + use.getKey() + " FROM " + groupName, 
+							() -> certPolService.removePolicyUseFromGroup(groupName, use.getValue())));
+					if (replacedPolicies.containsKey(policyName) && uses.containsKey(use.getKey()))
+						replacedUseGroups.computeIfAbsent(policyName, k -> new TreeSet<String>()).add(groupName);
+				}
+			}
+			
+			for (Map.Entry<String, CertPolicyGroupUse> use : uses.entrySet())
+				if (!existingUses.containsKey(use.getKey()) || replacedPolicies.containsKey(use.getValue().getPolicy().getPolicyName()))
+					addUses.add(new PolicyOperation("ADD USE " + use.getKey() + " TO " + groupName, 
+							() -> certPolService.addPolicyUseToGroup(groupName, use.getValue())));
+			
+			if (group == null)
+			{
+				if (!prune)
+					continue;
+				
+				deletes.add(new PolicyOperation("DELETE GROUP " + groupName, () -> certPolService.deletePolicyGroup(groupName)));
+			}
+			
+			final Set<String> boundDomains = bindings.getOrDefault(groupName, Collections.<String>emptySet());
+			for (String domain : boundDomains)
+				if (group == null || !group.domains.contains(domain))
+					unbind.add(new PolicyOperation("UNBIND " + groupName + " FROM " + domain, 
+							() -> certPolService.disassociatePolicyGroupFromDomain(groupName, domain)));
+			
+			if (group != null)
+				for (String domain : group.domains)
+					if (!boundDomains.contains(domain))
+						bind.add(new PolicyOperation("BIND " + groupName + " TO " + domain, 
+								() -> certPolService.associatePolicyGroupToDomain(groupName, domain)));
+		}
+		for (GroupDefinition group : definitions.groups.values())
+		{
+			if (groups.containsKey(group.name))
+				continue;
+			
+			final CertPolicyGroup policyGroup = new CertPolicyGroup();
+			policyGroup.setPolicyGroupName(group.name);
+			adds.add(new PolicyOperation("ADD GROUP " + group.name, () -> certPolService.addPolicyGroup(policyGroup)));
+			for (Map.Entry<String, CertPolicyGroupUse> use : group.uses.entrySet())
+				addUses.add(new PolicyOperation("ADD USE " + use.getKey() + " TO " + group.name, 
+						() -> certPolService.addPolicyUseToGroup(group.name, use.getValue())));
+			for (String domain : group.domains)
+				bind.add(new PolicyOperation("BIND " + group.name + " TO " + domain, 
+						() -> certPolService.associatePolicyGroupToDomain(group.name, domain)));
+		}
+		for (Map.Entry<String, CertPolicy> replaced : replacedPolicies.entrySet())
+		{
+			final CertPolicy policy = replaced.getValue();
+			final Set<String> useGroups = replacedUseGroups.getOrDefault(replaced.getKey(), Collections.<String>emptySet());
+			adds.add(new PolicyOperation("ADD POLICY " + policy.getPolicyName() + " (changed)", () -> certPolService.addPolicy(policy), 
+					"The previous version of the policy was deleted" + (useGroups.isEmpty() ? "" : " and its uses were removed from groups " + String.join(", ", useGroups)) + 
+					", so the policy is no longer in the system."));
+		}
+		
+		final List<List<PolicyOperation>> phases = Arrays.asList(unbind, removeUses, deletes, adds, addUses, bind);
+		int total = 0;
+		for (List<PolicyOperation> phase : phases)
+		{
+			total += phase.size();
+			for (PolicyOperation operation : phase)
+				System.out.println(operation.description);
+		}
+		
+		if (kept > 0)
+			System.out.println(kept + " policies and groups are not in the file and are kept.  Use --prune to delete them.");
+		
+		if (total == 0)
+		{
+			System.out.println("All policies and policy groups are up to date");
+			return;
+		}
+		
+		if (dryRun)
+			return;
+		
+		int applied = 0;
+		for (List<PolicyOperation> phase : phases)
+		{
+			int failed = 0;
+			for (ParallelTasks.Outcome<PolicyOperation, Void> outcome : 
+				ParallelTasks.<PolicyOperation, Void>invokeAll(phase, parallel, operation -> 
+				{
+					operation.call.execute();
+					return null;
+				}))
+			{
+				if (outcome.isSuccess())
+					++applied;
+				else
+				{
+					++failed;
+					System.out.println("Failed to " + outcome.getItem().description + " : " + outcome.getError().getMessage() + 
+							((outcome.getItem().failureNote == null) ? "" : "  " + outcome.getItem().failureNote));
+				}
+			}
+			
+			// later phases depend on the earlier ones
+			if (failed > 0)
+			{
+				System.out.println("Stopping after failures.  Applied " + applied + " of " + total + " changes.");
+				return;
+			}
+		}
+		
+		System.out.println("Applied " + applied + " policy changes");
+	}
+	
+	/**
+	 * Reads policy and group definitions from a YAML document.  Policy definition files are read and parsed so that syntax errors
+	 * are reported before anything is changed.
+	 */
+	protected static PolicyDefinitions readPolicyDefinitions(File file) throws Exception
+	{
+		final Object document;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file)))
+		{
+			document = new Yaml(new SafeConstructor()).load(in);
+		}
+		
+		if (!(document instanceof Map))
+			throw new IllegalArgumentException("The file does not contain policies or groups");
+		
+		final PolicyDefinitions retVal = new PolicyDefinitions();
+		for (Map<?, ?> fields : getMapList((Map<?, ?>)document, "policies", "Policy"))
+		{
+			final String name = getRequiredString(fields, "name", "Policy");
+			final File policyFile = new File(getRequiredString(fields, "file", "Policy " + name));
+			final byte[] policyData = FileUtils.readFileToByteArray(
+					policyFile.isAbsolute() ? policyFile : new File(file.getAbsoluteFile().getParentFile(), policyFile.getPath()));
+			
+			final PolicyLexicon lexicon = (fields.get("lexicon") == null) ? PolicyParsers.detectLexicon(policyFile.getName(), policyData) :
+				PolicyLexicon.valueOf(fields.get("lexicon").toString().trim());
+			PolicyParsers.parse(policyData, lexicon);
+			
+			final CertPolicy policy = new CertPolicy();
+			policy.setPolicyName(name);
+			policy.setPolicyData(policyData);
+			policy.setLexicon(lexicon);
+			if (retVal.policies.put(name, policy) != null)
+				throw new IllegalArgumentException("Policy " + name + " is defined more than once");
+		}
+		
+		for (Map<?, ?> fields : getMapList((Map<?, ?>)document, "groups", "Group"))
+		{
+			final GroupDefinition group = new GroupDefinition(getRequiredString(fields, "name", "Group"));
+			for (Map<?, ?> useFields : getMapList(fields, "uses", "Use of group " + group.name))
+			{
+				final String policyName = getRequiredString(useFields, "policy", "Use of group " + group.name);
+				final CertPolicy policy = retVal.policies.get(policyName);
+				if (policy == null)
+					throw new IllegalArgumentException("Group " + group.name + " uses undefined policy " + policyName);
+				
+				final CertPolicyGroupUse use = new CertPolicyGroupUse();
+				use.setPolicy(policy);
+				use.setPolicyUse(CertPolicyUse.valueOf(getRequiredString(useFields, "use", "Use of group " + group.name).toUpperCase(Locale.ENGLISH)));
+				use.setIncoming(Boolean.parseBoolean(String.valueOf(useFields.get("incoming"))));
+				use.setOutgoing(Boolean.parseBoolean(String.valueOf(useFields.get("outgoing"))));
+				group.uses.put(toUseKey(use), use);
+			}
+			
+			if (fields.get("domains") instanceof List)
+				for (Object domain : (List<?>)fields.get("domains"))
+					group.domains.add(domain.toString().trim());
+			
+			if (retVal.groups.put(group.name, group) != null)
+				throw new IllegalArgumentException("Group " + group.name + " is defined more than once");
+		}
+		
+		return retVal;
+	}
+	
+	protected static List<Map<?, ?>> getMapList(Map<?, ?> fields, String key, String entryType)
+	{
+		final Object value = fields.get(key);
+		if (value == null)
+			return Collections.emptyList();
+		if (!(value instanceof List))
+			throw new IllegalArgumentException(key + " must be a list");
+		
+		final List<Map<?, ?>> retVal = new ArrayList<Map<?, ?>>();
+		for (Object entry : (List<?>)value)
+		{
+			if (!(entry instanceof Map))
+				throw new IllegalArgumentException(entryType + " entry " + (retVal.size() + 1) + " is not a map");
+			retVal.add((Map<?, ?>)entry);
+		}
+		
+		return retVal;
+	}
+	
+	protected static String getRequiredString(Map<?, ?> fields, String key, String entryType)
+	{
+		final Object value = fields.get(key);
+		if (value == null || value.toString().trim().isEmpty())
+			throw new IllegalArgumentException(entryType + " entry requires a " + key);
+		
+		return value.toString().trim();
+	}
+	
+	protected static String toUseKey(CertPolicyGroupUse use)
+	{
+		return use.getPolicy().getPolicyName().toLowerCase(Locale.ENGLISH) + "/" + use.getPolicyUse() + "/" + (use.isIncoming() ? "in" : "") + (use.isOutgoing() ? "out" : "");
+	}
+	
+	protected static CertPolicyGroupUse copyUse(CertPolicyGroupUse use, CertPolicy policy)
+	{
+		final CertPolicyGroupUse retVal = new CertPolicyGroupUse();
+		retVal.setPolicy(policy);
+		retVal.setPolicyUse(use.getPolicyUse());
+		retVal.setIncoming(use.isIncoming());
+		retVal.setOutgoing(use.isOutgoing());
+		return retVal;
+	}
+	
+	protected static class PolicyDefinitions
+	{
+		protected final Map<String, CertPolicy> policies = new TreeMap<String, CertPolicy>(String.CASE_INSENSITIVE_ORDER);
+		protected final Map<String, GroupDefinition> groups = new TreeMap<String, GroupDefinition>(String.CASE_INSENSITIVE_ORDER);
+	}
+	
+	protected static class GroupDefinition
+	{
+		protected final String name;
+		protected final Map<String, CertPolicyGroupUse> uses = new LinkedHashMap<String, CertPolicyGroupUse>();
+		protected Set<String> domains = new LinkedHashSet<String>();
+		
+		protected GroupDefinition(String name)
+		{
+			this.name = name;
+		}
+	}
+	
+	protected interface ServiceCall
+	{
+		public void execute() throws Exception;
+	}
+	
+	protected static class PolicyOperation
+	{
+		protected final String description;
+		protected final ServiceCall call;
+		protected final String failureNote;
+		
+		protected PolicyOperation(String description, ServiceCall call)
+		{
+			this(description, call, null);
+		}
+		
+		protected PolicyOperation(String description, ServiceCall call, String failureNote)
+		{
+			this.description = description;
+			this.call = call;
+			this.failureNote = failureNote;
+		}
+	}
+	
+	@Command(name = "PolicyUsageGraph", usage = POLICY_USAGE_GRAPH_USAGE)
+    public void policyUsageGraph(String[] args)
+	{
+		String name = null;
+		String dotFile = null;
+		String csvFile = null;
+		for (int i = 0; i < args.length; ++i)
+		{
+			if (args[i].equalsIgnoreCase("--dot") && i + 1 < args.length)
+				dotFile = args[++i];
+			else if (args[i].equalsIgnoreCase("--csv") && i + 1 < args.length)
+				csvFile = args[++i];
+			else if (name == null)
+				name = args[i];
+			else
+			{
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		
+		final PolicyUsageGraph graph;
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			final Future<Collection<CertPolicy>> policiesFuture = executor.submit(() -> certPolService.getPolicies());
+			final Future<Collection<CertPolicyGroup>> groupsFuture = executor.submit(() -> certPolService.getPolicyGroups());
+			
+			final Map<String, Collection<CertPolicyGroup>> domainGroups = new HashMap<String, Collection<CertPolicyGroup>>();
+			final Collection<Domain> domains = domainService.searchDomains("", null);
+			if (domains != null)
+			{
+				for (ParallelTasks.Outcome<Domain, Collection<CertPolicyGroup>> outcome : 
+					ParallelTasks.invokeAll(domains, domain -> certPolService.getPolicyGroupsByDomain(domain.getDomainName())))
+				{
+					if (!outcome.isSuccess())
+						throw outcome.getError();
+					
+					domainGroups.put(outcome.getItem().getDomainName(), ParallelTasks.nullToEmpty(outcome.getResult()));
+				}
+			}
+			
+			final List<String> policyNames = new ArrayList<String>();
+			for (CertPolicy policy : ParallelTasks.nullToEmpty(ParallelTasks.getResult(policiesFuture)))
+				policyNames.add(policy.getPolicyName());
+			
+			graph = PolicyUsageGraph.build(policyNames, ParallelTasks.nullToEmpty(ParallelTasks.getResult(groupsFuture)), domainGroups);
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup policies, groups, and domains: " + e.getMessage());
+			return;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		
+		if (name == null)
+		{
+			if (graph.getPolicies().isEmpty())
+				System.out.println("No policies found");
+			for (String policy : graph.getPolicies())
+				printPolicyUsage(graph, policy);
+		}
+		else if (!graph.isPolicy(name) && !graph.isGroup(name) && !graph.isDomain(name))
+			System.out.println("No policy, policy group, or domain with name " + name + " found");
+		else
+		{
+			if (graph.isPolicy(name))
+				printPolicyUsage(graph, name);
+			
+			if (graph.isGroup(name))
+			{
+				System.out.println("Policy group " + name);
+				for (PolicyUsageGraph.PolicyUse use : graph.getUsesInGroup(name))
+					System.out.println("\tpolicy " + use.getPolicyName() + " (" + use.getUse() + ", " + use.getDirection() + ")");
+				for (String domain : graph.getDomainsOfGroup(name))
+					System.out.println("\tdomain " + domain);
+			}
+			
+			if (graph.isDomain(name))
+			{
+				System.out.println("Domain " + name);
+				if (graph.getGroupsOfDomain(name).isEmpty())
+					System.out.println("\t<no policy groups>");
+				for (String group : graph.getGroupsOfDomain(name))
+				{
+					System.out.println("\tgroup " + group);
+					for (PolicyUsageGraph.PolicyUse use : graph.getUsesInGroup(group))
+						System.out.println("\t\tpolicy " + use.getPolicyName() + " (" + use.getUse() + ", " + use.getDirection() + ")");
+				}
+			}
+		}
+		
+		try
+		{
+			if (dotFile != null)
+			{
+				try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dotFile), StandardCharsets.UTF_8)))
+				{
+					graph.writeDOT(writer);
+				}
+				System.out.println("Wrote policy usage graph to " + dotFile);
+			}
+			
+			if (csvFile != null)
+			{
+				try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), StandardCharsets.UTF_8)))
+				{
+					graph.writeCSV(writer);
+				}
+				System.out.println("Wrote policy usage graph to " + csvFile);
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error writing policy usage graph : " + e.getMessage());
+		}
+	}
+	
+	protected static void printPolicyUsage(PolicyUsageGraph graph, String policyName)
+	{
+		System.out.println("Policy " + policyName);
+		if (graph.getUsesOfPolicy(policyName).isEmpty())
+			System.out.println("\t<not used by any policy group>");
+		
+		for (PolicyUsageGraph.PolicyUse use : graph.getUsesOfPolicy(policyName))
+		{
+			final Set<String> domains = graph.getDomainsOfGroup(use.getGroupName());
+			System.out.println("\tgroup " + use.getGroupName() + " (" + use.getUse() + ", " + use.getDirection() + ") -> " + 
+					(domains.isEmpty() ? "<no domains>" : String.join(", ", domains)));
+		}
+		
+		System.out.println("\t" + graph.getDomainsOfPolicy(policyName).size() + " domains affected");
+	}
+	
+	@Command(name = "ExportPolicies", usage = EXPORT_POLICIES_USAGE)
+    public void exportPolicies(String[] args)
+	{
+		final String exportLoc = StringArrayUtil.getRequiredValue(args, 0);
+		
+		final List<CertPolicy> policies;
+		try
+		{
+			final Collection<CertPolicy> allPolicies = certPolService.getPolicies();
+			if (allPolicies == null || allPolicies.size() == 0)
+			{
+				System.out.println("No policies found");
+				return;
+			}
+			
+			policies = new ArrayList<CertPolicy>(allPolicies);
+			policies.sort((p1, p2) -> p1.getPolicyName().compareToIgnoreCase(p2.getPolicyName()));
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup policies: " + e.getMessage());
+			return;
+		}
+		
+		final File location = new File(exportLoc);
+		final StringBuilder manifest = new StringBuilder(POLICY_MANIFEST_HEADER).append("\r\n");
+		final Set<String> fileNames = new HashSet<String>();
+		try (PolicyExportWriter writer = location.getName().toLowerCase(Locale.ENGLISH).endsWith(".zip") ? 
+				new ZipPolicyExportWriter(location) : new DirectoryPolicyExportWriter(location))
+		{
+			// the manifest digests are computed here rather than through the thumbprint service, which memoizes digests of certificates
+			final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			for (CertPolicy policy : policies)
+			{
+				final byte[] policyData = (policy.getPolicyData() == null) ? new byte[0] : policy.getPolicyData();
+				final PolicyLexicon lexicon = (policy.getLexicon() == null) ? PolicyLexicon.SIMPLE_TEXT_V1 : policy.getLexicon();
+				
+				// policy names may contain characters that are not valid in file names, and different names may map to the same file name
+				final String baseName = policy.getPolicyName().replaceAll("[^A-Za-z0-9._-]", "_");
+				String fileName = baseName + PolicyParsers.getExtension(lexicon);
+				for (int i = 2; !fileNames.add(fileName.toLowerCase(Locale.ENGLISH)); ++i)
+					fileName = baseName + "_" + i + PolicyParsers.getExtension(lexicon);
+				
+				writer.write(fileName, policyData);
+				
+				manifest.append(CertInventory.csvValue(policy.getPolicyName())).append(',').append(lexicon).append(',')
+					.append(CertInventory.csvValue(fileName)).append(',').append(toHex(sha256.digest(policyData))).append("\r\n");
+			}
+			
+			writer.write(POLICY_MANIFEST_FILE, manifest.toString().getBytes(StandardCharsets.UTF_8));
+			
+			System.out.println("Exported " + policies.size() + " policies to " + location.getAbsolutePath());
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to export policies to " + location.getAbsolutePath() + " : " + e.getMessage());
+		}
+	}
+	
+	protected static String toHex(byte[] data)
+	{
+		final StringBuilder retVal = new StringBuilder(data.length * 2);
+		for (byte b : data)
+			retVal.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+		
+		return retVal.toString();
+	}
+	
+	/**
+	 * Destination of exported policy files.
+	 */
+	protected interface PolicyExportWriter extends Closeable
+	{
+		public void write(String fileName, byte[] data) throws IOException;
+	}
+	
+	/**
+	 * Writes all exported files as entries of one zip stream over a single buffered file channel.
+	 */
+	protected static class ZipPolicyExportWriter implements PolicyExportWriter
+	{
+		protected final ZipOutputStream zipStream;
+		
+		protected ZipPolicyExportWriter(File file) throws IOException
+		{
+			zipStream = new ZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(FileChannel.open(file.toPath(), 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)), EXPORT_BUFFER_SIZE));
+		}
+		
+		@Override
+		public void write(String fileName, byte[] data) throws IOException
+		{
+			zipStream.putNextEntry(new ZipEntry(fileName));
+			zipStream.write(data);
+			zipStream.closeEntry();
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			zipStream.close();
+		}
+	}
+	
+	/**
+	 * Writes each exported file to a directory.  Every file needs a channel of its own, so the channels share a single buffer 
+	 * instead; export to a zip file to write everything through one channel.
+	 */
+	protected static class DirectoryPolicyExportWriter implements PolicyExportWriter
+	{
+		protected final File directory;
+		protected final ByteBuffer buffer = ByteBuffer.allocate(EXPORT_BUFFER_SIZE);
+		
+		protected DirectoryPolicyExportWriter(File directory) throws IOException
+		{
+			FileUtils.forceMkdir(directory);
+			this.directory = directory;
+		}
+		
+		@Override
+		public void write(String fileName, byte[] data) throws IOException
+		{
+			try (FileChannel channel = FileChannel.open(new File(directory, fileName).toPath(), 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				for (int offset = 0; offset < data.length; offset += buffer.capacity())
+				{
+					buffer.clear();
+					buffer.put(data, offset, Math.min(buffer.capacity(), data.length - offset));
+					buffer.flip();
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+				}
+			}
+		}
+		
+		@Override
+		public void close()
+		{
+			
+		}
+	}
+	
 	@Command(name = "DeletePolicy", usage = DELETE_POLICY_USAGE)
     public void deletePolicy(String[] args)
 	{
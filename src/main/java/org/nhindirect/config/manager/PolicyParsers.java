@@ -0,0 +1,173 @@
+package org.nhindirect.config.manager;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.nhindirect.policy.PolicyExpression;
+import org.nhindirect.policy.PolicyLexicon;
+import org.nhindirect.policy.PolicyLexiconParser;
+import org.nhindirect.policy.PolicyLexiconParserFactory;
+import org.nhindirect.policy.PolicyParseException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Parses policy definitions with the lexicon parsers used by ImportPolicy.  Parser instances are created once per thread and
+ * lexicon and reused for every definition parsed on that thread, so definitions can be parsed on a worker pool without sharing
+ * parser state between threads.
+ */
+public class PolicyParsers
+{
+	protected static final ThreadLocal<Map<PolicyLexicon, PolicyLexiconParser>> PARSERS =
+			ThreadLocal.withInitial(() -> new EnumMap<PolicyLexicon, PolicyLexiconParser>(PolicyLexicon.class));
+
+	private PolicyParsers()
+	{
+
+	}
+
+	/**
+	 * Parses a policy definition.
+	 * @param policyData The policy definition.
+	 * @param lexicon The lexicon of the definition.
+	 * @return The compiled policy expression.
+	 * @throws PolicyParseException If the definition is not valid for the lexicon.
+	 */
+	public static PolicyExpression parse(byte[] policyData, PolicyLexicon lexicon) throws PolicyParseException
+	{
+		PolicyLexiconParser parser = PARSERS.get().get(lexicon);
+		if (parser == null)
+		{
+			parser = PolicyLexiconParserFactory.getInstance(lexicon);
+			PARSERS.get().put(lexicon, parser);
+		}
+
+		return parser.parse(new ByteArrayInputStream(policyData));
+	}
+
+	/**
+	 * Determines the lexicon of a policy definition from its file extension, falling back to its content.  Files ending in .xml
+	 * or starting with &lt; are XML, files ending in .ser or starting with the Java serialization header are JAVA_SER, and all
+	 * others are SIMPLE_TEXT_V1.
+	 * @param fileName The name of the definition file.
+	 * @param policyData The policy definition.
+	 * @return The detected lexicon.
+	 */
+	public static PolicyLexicon detectLexicon(String fileName, byte[] policyData)
+	{
+		final String name = fileName.toLowerCase(Locale.ENGLISH);
+		if (name.endsWith(".xml"))
+			return PolicyLexicon.XML;
+		else if (name.endsWith(".ser"))
+			return PolicyLexicon.JAVA_SER;
+		else if (name.endsWith(".txt") || name.endsWith(".pol"))
+			return PolicyLexicon.SIMPLE_TEXT_V1;
+
+		if (policyData.length >= 2 && (policyData[0] & 0xFF) == 0xAC && (policyData[1] & 0xFF) == 0xED)
+			return PolicyLexicon.JAVA_SER;
+
+		for (byte b : policyData)
+		{
+			if (!Character.isWhitespace(b))
+				return (b == '<') ? PolicyLexicon.XML : PolicyLexicon.SIMPLE_TEXT_V1;
+		}
+
+		return PolicyLexicon.SIMPLE_TEXT_V1;
+	}
+
+	/**
+	 * Gets the file extension used for definitions of a lexicon.
+	 * @param lexicon The lexicon.
+	 * @return The extension including the leading period.
+	 */
+	public static String getExtension(PolicyLexicon lexicon)
+	{
+		switch (lexicon)
+		{
+			case XML:
+				return ".xml";
+			case JAVA_SER:
+				return ".ser";
+			default:
+				return ".txt";
+		}
+	}
+
+	/**
+	 * Describes a parse error, including the line and column when the parser reports them.
+	 * @param e The parse error.
+	 * @return The description.
+	 */
+	public static String describeError(PolicyParseException e)
+	{
+		return describeError(e, null);
+	}
+
+	/**
+	 * Describes a parse error of a policy definition.  XML parsers report the line and column of the error.  The simple text parser
+	 * does not, so the token of the definition that the error message names is reported without a position, because the token may
+	 * occur more than once.
+	 * @param e The parse error.
+	 * @param policyData The policy definition that failed to parse, or null if it is not available.
+	 * @return The description.
+	 */
+	public static String describeError(PolicyParseException e, byte[] policyData)
+	{
+		Throwable root = e;
+		while (root.getMessage() == null && root.getCause() != null)
+			root = root.getCause();
+
+		final String message = (root.getMessage() == null) ? root.getClass().getSimpleName() : root.getMessage();
+
+		final StringBuilder builder = new StringBuilder();
+		for (Throwable t = e; t != null; t = t.getCause())
+		{
+			if (t instanceof SAXParseException)
+			{
+				final SAXParseException saxError = (SAXParseException)t;
+				builder.append("line ").append(saxError.getLineNumber()).append(", column ").append(saxError.getColumnNumber()).append(": ");
+				break;
+			}
+		}
+
+		if (builder.length() == 0 && policyData != null)
+		{
+			final String token = findNamedToken(new String(policyData, StandardCharsets.UTF_8), message);
+			if (token != null)
+			{
+				builder.append(message).append(" (near token '").append(token).append("')");
+				return builder.toString();
+			}
+		}
+
+		builder.append(message);
+
+		return builder.toString();
+	}
+
+	/**
+	 * Finds the token of a definition that an error message refers to.  Words of the message are matched against the whitespace
+	 * and parenthesis delimited tokens of the definition, and the last word of the message that is a token wins because parser
+	 * messages name the offending token after the description of the problem.
+	 * @return The token, or null if the message names no token of the definition.
+	 */
+	protected static String findNamedToken(String definition, String message)
+	{
+		final Set<String> tokens = new HashSet<String>(Arrays.asList(definition.split("[\\s()]+")));
+
+		String retVal = null;
+		for (String word : message.split("\\s+"))
+		{
+			final String token = word.replaceAll("^['\"(\\[]+|['\",:;)\\]]+$", "").replaceAll("\\.$", "");
+			if (!token.isEmpty() && tokens.contains(token))
+				retVal = token;
+		}
+
+		return retVal;
+	}
+}
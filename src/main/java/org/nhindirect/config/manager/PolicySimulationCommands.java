@@ -0,0 +1,337 @@
+package org.nhindirect.config.manager;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.nhind.config.rest.AnchorService;
+import org.nhind.config.rest.CertPolicyService;
+import org.nhind.config.rest.CertificateService;
+import org.nhind.config.rest.DomainService;
+import org.nhind.config.rest.TrustBundleService;
+import org.nhindirect.common.tooling.Command;
+import org.nhindirect.config.model.Anchor;
+import org.nhindirect.config.model.CertPolicy;
+import org.nhindirect.config.model.CertPolicyGroup;
+import org.nhindirect.config.model.CertPolicyGroupUse;
+import org.nhindirect.config.model.CertPolicyUse;
+import org.nhindirect.config.model.Certificate;
+import org.nhindirect.config.model.Domain;
+import org.nhindirect.config.model.TrustBundleAnchor;
+import org.nhindirect.config.model.TrustBundleDomainReltn;
+import org.nhindirect.config.model.utils.CertUtils;
+import org.nhindirect.policy.PolicyExpression;
+import org.nhindirect.policy.PolicyFilter;
+import org.nhindirect.policy.PolicyFilterFactory;
+import org.nhindirect.policy.PolicyLexicon;
+import org.nhindirect.policy.PolicyParseException;
+import org.nhindirect.policy.PolicyRequiredException;
+
+public class PolicySimulationCommands
+{
+    private static final String SIMULATE_DOMAIN_POLICIES_USAGE = "Evaluates the policies of the policy groups associated with one or more domains against the " +
+    		"domains' stored certificates and anchors without changing anything.  TRUST policies are evaluated against the domain's anchors and the " +
+    		"anchors of its associated trust bundles for the directions they are used for, PRIVATE_RESOLVER policies against the domain's certificates with private keys, and PUBLIC_RESOLVER policies " +
+    		"against the domain's certificates without private keys." +
+            "\r\n  domainName [domainName ...]" +
+            "\r\n\t domainName: Name of a domain to simulate.";
+
+	protected CertPolicyService certPolService;
+	protected CertificateService certService;
+	protected AnchorService anchorService;
+	protected DomainService domainService;
+	protected TrustBundleService bundleService;
+
+	/**
+	 * Policies compiled by earlier simulations, keyed by policy name.  A cached policy is reused while its definition is unchanged.
+	 */
+	protected final Map<String, CompiledPolicy> compiledPolicies = new ConcurrentHashMap<String, CompiledPolicy>();
+
+	protected static class CompiledPolicy
+	{
+		protected final byte[] policyData;
+		protected final PolicyLexicon lexicon;
+		protected final PolicyExpression expression;
+		protected final String error;
+
+		protected CompiledPolicy(byte[] policyData, PolicyLexicon lexicon, PolicyExpression expression, String error)
+		{
+			this.policyData = policyData;
+			this.lexicon = lexicon;
+			this.expression = expression;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * The configuration of one domain that the simulation depends on.
+	 */
+	protected static class DomainContext
+	{
+		protected Domain domain;
+		protected Collection<CertPolicyGroup> groups;
+		protected Collection<TrustBundleDomainReltn> bundles;
+	}
+
+	/**
+	 * The pass and fail counts of one policy use in one direction.
+	 */
+	protected static class UseResult
+	{
+		protected final LongAdder pass = new LongAdder();
+		protected final LongAdder fail = new LongAdder();
+		protected final LongAdder required = new LongAdder();
+		protected final LongAdder error = new LongAdder();
+	}
+
+	public PolicySimulationCommands(CertPolicyService certPolService, CertificateService certService, AnchorService anchorService,
+			DomainService domainService, TrustBundleService bundleService)
+	{
+		this.certPolService = certPolService;
+		this.certService = certService;
+		this.anchorService = anchorService;
+		this.domainService = domainService;
+		this.bundleService = bundleService;
+	}
+
+	@Command(name = "SimulateDomainPolicies", usage = SIMULATE_DOMAIN_POLICIES_USAGE)
+    public void simulateDomainPolicies(String[] args)
+	{
+		if (args.length == 0)
+		{
+			System.out.println("At least one domain name is required");
+			return;
+		}
+		final List<String> domains = Arrays.asList(args);
+
+		// certificates and anchors of all domains are fetched once while the policy groups and bundles of each domain are fetched
+		final Collection<Certificate> certs;
+		final Collection<Anchor> anchors;
+		final List<ParallelTasks.Outcome<String, DomainContext>> contexts;
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			final Future<Collection<Certificate>> certsFuture = executor.submit(() -> certService.getAllCertificates());
+			final Future<Collection<Anchor>> anchorsFuture = executor.submit(() -> anchorService.getAnchors());
+
+			contexts = ParallelTasks.invokeAll(domains, domainName ->
+			{
+				final DomainContext context = new DomainContext();
+				context.domain = domainService.getDomain(domainName);
+				if (context.domain != null)
+				{
+					context.groups = certPolService.getPolicyGroupsByDomain(domainName);
+					context.bundles = ParallelTasks.nullToEmpty(bundleService.getTrustBundlesByDomain(domainName, true));
+				}
+				return context;
+			});
+			certs = ParallelTasks.nullToEmpty(certsFuture.get());
+			anchors = ParallelTasks.nullToEmpty(anchorsFuture.get());
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup certificates and anchors: " + ((e.getCause() != null) ? e.getCause().getMessage() : e.getMessage()));
+			return;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		for (ParallelTasks.Outcome<String, DomainContext> outcome : contexts)
+		{
+			System.out.println("Domain " + outcome.getItem());
+			if (!outcome.isSuccess())
+				System.out.println("\tFailed to lookup domain policy groups and trust bundles: " + outcome.getError().getMessage());
+			else if (outcome.getResult().domain == null)
+				System.out.println("\tNo domain with name " + outcome.getItem() + " found");
+			else if (outcome.getResult().groups == null || outcome.getResult().groups.isEmpty())
+				System.out.println("\tDomain does not have any policy groups associated with it.");
+			else
+				simulateDomain(outcome.getResult().domain.getDomainName(), outcome.getResult().groups, outcome.getResult().bundles, certs, anchors);
+
+			System.out.println();
+		}
+	}
+
+	protected void simulateDomain(String domain, Collection<CertPolicyGroup> groups, Collection<TrustBundleDomainReltn> bundles,
+			Collection<Certificate> certs, Collection<Anchor> anchors)
+	{
+		final List<X509Certificate> privateCerts = new ArrayList<X509Certificate>();
+		final List<X509Certificate> publicCerts = new ArrayList<X509Certificate>();
+		for (Certificate cert : certs)
+		{
+			if (!CertValidationCommands.isDomainOwner(cert.getOwner(), domain))
+				continue;
+
+			// IPKIX URL records do not contain a certificate and are skipped
+			final X509Certificate decoded = CertValidationCommands.decode(cert);
+			if (decoded != null)
+				(cert.isPrivateKey() ? privateCerts : publicCerts).add(decoded);
+		}
+
+		// an anchor that is both stored for the domain and provided by a bundle is evaluated once per direction
+		final Map<String, X509Certificate> incoming = new LinkedHashMap<String, X509Certificate>();
+		final Map<String, X509Certificate> outgoing = new LinkedHashMap<String, X509Certificate>();
+		for (Anchor anchor : anchors)
+		{
+			if (!domain.equalsIgnoreCase(anchor.getOwner()))
+				continue;
+
+			try
+			{
+				addAnchor(CertUtils.toX509Certificate(anchor.getCertificateData()), anchor.isIncoming() ? incoming : null, anchor.isOutgoing() ? outgoing : null);
+			}
+			catch (Exception e)
+			{
+				System.out.println("\tSkipping undecodable anchor " + anchor.getId() + " : " + e.getMessage());
+			}
+		}
+
+		int bundleAnchors = 0;
+		for (TrustBundleDomainReltn reltn : bundles)
+		{
+			if (reltn.getTrustBundle().getTrustBundleAnchors() == null)
+				continue;
+
+			for (TrustBundleAnchor anchor : reltn.getTrustBundle().getTrustBundleAnchors())
+			{
+				try
+				{
+					addAnchor(anchor.getAsX509Certificate(), reltn.isIncoming() ? incoming : null, reltn.isOutgoing() ? outgoing : null);
+					++bundleAnchors;
+				}
+				catch (Exception e)
+				{
+					System.out.println("\tSkipping undecodable anchor of bundle " + reltn.getTrustBundle().getBundleName() + " : " + e.getMessage());
+				}
+			}
+		}
+		final List<X509Certificate> incomingAnchors = new ArrayList<X509Certificate>(incoming.values());
+		final List<X509Certificate> outgoingAnchors = new ArrayList<X509Certificate>(outgoing.values());
+
+		System.out.println("\t" + privateCerts.size() + " private certificates, " + publicCerts.size() + " public certificates, " +
+				incomingAnchors.size() + " incoming anchors, " + outgoingAnchors.size() + " outgoing anchors (" + bundleAnchors + " anchors from " +
+				bundles.size() + " trust bundles)");
+
+		// one row per group, policy, usage, and direction
+		final Map<String, UseResult> results = new LinkedHashMap<String, UseResult>();
+		final Map<String, List<X509Certificate>> subjects = new HashMap<String, List<X509Certificate>>();
+		final Map<String, CompiledPolicy> rowPolicies = new HashMap<String, CompiledPolicy>();
+		for (CertPolicyGroup group : groups)
+		{
+			if (group.getPolicies() == null)
+				continue;
+
+			for (CertPolicyGroupUse use : group.getPolicies())
+			{
+				final CompiledPolicy policy = compile(use.getPolicy());
+				for (String direction : new String[] {"incoming", "outgoing"})
+				{
+					if (direction.equals("incoming") ? !use.isIncoming() : !use.isOutgoing())
+						continue;
+
+					final String row = String.format("%-25s %-30s %-17s %-9s", group.getPolicyGroupName(), use.getPolicy().getPolicyName(), use.getPolicyUse(), direction);
+					final List<X509Certificate> rowSubjects;
+					if (use.getPolicyUse() == CertPolicyUse.TRUST)
+						rowSubjects = direction.equals("incoming") ? incomingAnchors : outgoingAnchors;
+					else
+						rowSubjects = (use.getPolicyUse() == CertPolicyUse.PRIVATE_RESOLVER) ? privateCerts : publicCerts;
+
+					results.put(row, new UseResult());
+					subjects.put(row, rowSubjects);
+					rowPolicies.put(row, policy);
+				}
+			}
+		}
+
+		if (results.isEmpty())
+		{
+			System.out.println("\tThe domain's policy groups do not contain any policies.");
+			return;
+		}
+
+		final PolicyFilter filter = PolicyFilterFactory.getInstance();
+		for (Map.Entry<String, UseResult> entry : results.entrySet())
+		{
+			final CompiledPolicy policy = rowPolicies.get(entry.getKey());
+			final UseResult result = entry.getValue();
+			final List<X509Certificate> rowSubjects = subjects.get(entry.getKey());
+			if (policy.expression == null)
+				continue;
+
+			rowSubjects.parallelStream().forEach(cert ->
+			{
+				try
+				{
+					if (filter.isCompliant(cert, policy.expression))
+						result.pass.increment();
+					else
+						result.fail.increment();
+				}
+				catch (PolicyRequiredException e)
+				{
+					result.required.increment();
+				}
+				catch (Exception e)
+				{
+					result.error.increment();
+				}
+			});
+		}
+
+		System.out.println(String.format("\t%-25s %-30s %-17s %-9s %6s %6s %8s %6s", "Group", "Policy", "Usage", "Direction", "Pass", "Fail", "Required", "Error"));
+		for (Map.Entry<String, UseResult> entry : results.entrySet())
+		{
+			final CompiledPolicy policy = rowPolicies.get(entry.getKey());
+			final UseResult result = entry.getValue();
+			if (policy.expression == null)
+				System.out.println("\t" + entry.getKey() + " policy does not compile: " + policy.error);
+			else
+				System.out.println(String.format("\t%s %6d %6d %8d %6d", entry.getKey(), result.pass.sum(), result.fail.sum(),
+						result.required.sum(), result.error.sum()));
+		}
+	}
+
+	protected static void addAnchor(X509Certificate anchor, Map<String, X509Certificate> incoming, Map<String, X509Certificate> outgoing)
+	{
+		final String thumbprint = ThumbprintService.getInstance().getThumbprint(anchor);
+		if (incoming != null)
+			incoming.putIfAbsent(thumbprint, anchor);
+		if (outgoing != null)
+			outgoing.putIfAbsent(thumbprint, anchor);
+	}
+
+	/**
+	 * Compiles a policy, reusing an earlier compilation if the policy definition and lexicon have not changed.
+	 */
+	protected CompiledPolicy compile(CertPolicy policy)
+	{
+		final CompiledPolicy cached = compiledPolicies.get(policy.getPolicyName());
+		if (cached != null && cached.lexicon == policy.getLexicon() && Arrays.equals(cached.policyData, policy.getPolicyData()))
+			return cached;
+
+		CompiledPolicy retVal;
+		try
+		{
+			retVal = new CompiledPolicy(policy.getPolicyData(), policy.getLexicon(), PolicyParsers.parse(policy.getPolicyData(), policy.getLexicon()), null);
+		}
+		catch (PolicyParseException e)
+		{
+			retVal = new CompiledPolicy(policy.getPolicyData(), policy.getLexicon(), null, PolicyParsers.describeError(e, policy.getPolicyData()));
+		}
+
+		compiledPolicies.put(policy.getPolicyName(), retVal);
+		return retVal;
+	}
+}
@@ -0,0 +1,265 @@
+package org.nhindirect.config.manager;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.nhindirect.config.model.CertPolicyGroup;
+import org.nhindirect.config.model.CertPolicyGroupUse;
+
+/**
+ * Adjacency index of the graph from policies to the policy groups that use them, and from groups to the domains they are
+ * associated with.  Edges are indexed in both directions so that the groups and domains affected by a policy and the groups and
+ * policies applied to a domain are answered with map lookups.  Names are case insensitive.
+ */
+public class PolicyUsageGraph
+{
+	/**
+	 * The use of a policy within a group.
+	 */
+	public static class PolicyUse
+	{
+		protected final String policyName;
+		protected final String groupName;
+		protected final String use;
+		protected final boolean incoming;
+		protected final boolean outgoing;
+
+		protected PolicyUse(String policyName, String groupName, String use, boolean incoming, boolean outgoing)
+		{
+			this.policyName = policyName;
+			this.groupName = groupName;
+			this.use = use;
+			this.incoming = incoming;
+			this.outgoing = outgoing;
+		}
+
+		public String getPolicyName()
+		{
+			return policyName;
+		}
+
+		public String getGroupName()
+		{
+			return groupName;
+		}
+
+		public String getUse()
+		{
+			return use;
+		}
+
+		public String getDirection()
+		{
+			return (incoming && outgoing) ? "in/out" : incoming ? "in" : outgoing ? "out" : "none";
+		}
+	}
+
+	protected final Set<String> policies = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+	protected final Set<String> domains = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+	protected final Map<String, List<PolicyUse>> usesByPolicy = new TreeMap<String, List<PolicyUse>>(String.CASE_INSENSITIVE_ORDER);
+	protected final Map<String, List<PolicyUse>> usesByGroup = new TreeMap<String, List<PolicyUse>>(String.CASE_INSENSITIVE_ORDER);
+	protected final Map<String, Set<String>> domainsByGroup = new TreeMap<String, Set<String>>(String.CASE_INSENSITIVE_ORDER);
+	protected final Map<String, Set<String>> groupsByDomain = new TreeMap<String, Set<String>>(String.CASE_INSENSITIVE_ORDER);
+
+	protected PolicyUsageGraph()
+	{
+
+	}
+
+	/**
+	 * Builds the graph.
+	 * @param policyNames The names of all policies, including policies not used by any group.
+	 * @param groups All policy groups with their policy uses.
+	 * @param domainGroups The policy groups of each domain keyed by domain name.
+	 * @return The graph.
+	 */
+	public static PolicyUsageGraph build(Collection<String> policyNames, Collection<CertPolicyGroup> groups, Map<String, Collection<CertPolicyGroup>> domainGroups)
+	{
+		final PolicyUsageGraph retVal = new PolicyUsageGraph();
+		retVal.policies.addAll(policyNames);
+
+		for (CertPolicyGroup group : groups)
+		{
+			final List<PolicyUse> groupUses = retVal.usesByGroup.computeIfAbsent(group.getPolicyGroupName(), k -> new ArrayList<PolicyUse>());
+			retVal.domainsByGroup.computeIfAbsent(group.getPolicyGroupName(), k -> new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
+			if (group.getPolicies() == null)
+				continue;
+
+			for (CertPolicyGroupUse use : group.getPolicies())
+			{
+				final PolicyUse edge = new PolicyUse(use.getPolicy().getPolicyName(), group.getPolicyGroupName(), String.valueOf(use.getPolicyUse()),
+						use.isIncoming(), use.isOutgoing());
+
+				groupUses.add(edge);
+				retVal.policies.add(edge.policyName);
+				retVal.usesByPolicy.computeIfAbsent(edge.policyName, k -> new ArrayList<PolicyUse>()).add(edge);
+			}
+		}
+
+		for (Map.Entry<String, Collection<CertPolicyGroup>> entry : domainGroups.entrySet())
+		{
+			retVal.domains.add(entry.getKey());
+			final Set<String> groupNames = retVal.groupsByDomain.computeIfAbsent(entry.getKey(), k -> new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
+			for (CertPolicyGroup group : entry.getValue())
+			{
+				groupNames.add(group.getPolicyGroupName());
+				retVal.domainsByGroup.computeIfAbsent(group.getPolicyGroupName(), k -> new TreeSet<String>(String.CASE_INSENSITIVE_ORDER)).add(entry.getKey());
+			}
+		}
+
+		return retVal;
+	}
+
+	public boolean isPolicy(String name)
+	{
+		return policies.contains(name);
+	}
+
+	public boolean isGroup(String name)
+	{
+		return usesByGroup.containsKey(name) || domainsByGroup.containsKey(name);
+	}
+
+	public boolean isDomain(String name)
+	{
+		return domains.contains(name);
+	}
+
+	public Set<String> getPolicies()
+	{
+		return Collections.unmodifiableSet(policies);
+	}
+
+	public Set<String> getGroups()
+	{
+		return Collections.unmodifiableSet(domainsByGroup.keySet());
+	}
+
+	/**
+	 * Gets the group uses of a policy.
+	 * @param policyName The policy name.
+	 * @return The uses of the policy.
+	 */
+	public List<PolicyUse> getUsesOfPolicy(String policyName)
+	{
+		return usesByPolicy.getOrDefault(policyName, Collections.<PolicyUse>emptyList());
+	}
+
+	/**
+	 * Gets the policy uses of a group.
+	 * @param groupName The group name.
+	 * @return The policy uses within the group.
+	 */
+	public List<PolicyUse> getUsesInGroup(String groupName)
+	{
+		return usesByGroup.getOrDefault(groupName, Collections.<PolicyUse>emptyList());
+	}
+
+	/**
+	 * Gets the domains a group is associated with.
+	 * @param groupName The group name.
+	 * @return The domain names.
+	 */
+	public Set<String> getDomainsOfGroup(String groupName)
+	{
+		return domainsByGroup.getOrDefault(groupName, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Gets the groups associated with a domain.
+	 * @param domainName The domain name.
+	 * @return The group names.
+	 */
+	public Set<String> getGroupsOfDomain(String domainName)
+	{
+		return groupsByDomain.getOrDefault(domainName, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Gets the domains affected by a policy through all the groups that use it.
+	 * @param policyName The policy name.
+	 * @return The domain names.
+	 */
+	public Set<String> getDomainsOfPolicy(String policyName)
+	{
+		final Set<String> retVal = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		for (PolicyUse use : getUsesOfPolicy(policyName))
+			retVal.addAll(getDomainsOfGroup(use.groupName));
+
+		return retVal;
+	}
+
+	/**
+	 * Writes the graph in the Graphviz DOT language.
+	 * @param writer The destination of the graph.
+	 * @throws IOException If the graph cannot be written.
+	 */
+	public void writeDOT(Writer writer) throws IOException
+	{
+		writer.write("digraph PolicyUsage {\n");
+		writer.write("\trankdir=LR;\n");
+		for (String policy : policies)
+			writer.write("\t" + dotId("policy", policy) + " [shape=note, label=" + dotString(policy) + "];\n");
+		for (String group : domainsByGroup.keySet())
+			writer.write("\t" + dotId("group", group) + " [shape=box, label=" + dotString(group) + "];\n");
+		for (String domain : domains)
+			writer.write("\t" + dotId("domain", domain) + " [shape=ellipse, label=" + dotString(domain) + "];\n");
+
+		for (List<PolicyUse> uses : usesByPolicy.values())
+			for (PolicyUse use : uses)
+				writer.write("\t" + dotId("policy", use.policyName) + " -> " + dotId("group", use.groupName) +
+						" [label=" + dotString(use.use + " " + use.getDirection()) + "];\n");
+
+		for (Map.Entry<String, Set<String>> entry : domainsByGroup.entrySet())
+			for (String domain : entry.getValue())
+				writer.write("\t" + dotId("group", entry.getKey()) + " -> " + dotId("domain", domain) + ";\n");
+
+		writer.write("}\n");
+	}
+
+	/**
+	 * Writes one row per policy, group, and domain path.  Policies not used by a group and groups not associated with a domain
+	 * are written with empty columns.
+	 * @param writer The destination of the rows.
+	 * @throws IOException If the rows cannot be written.
+	 */
+	public void writeCSV(Writer writer) throws IOException
+	{
+		writer.write("Policy,Group,Use,Direction,Domain\r\n");
+		for (String policy : policies)
+		{
+			final List<PolicyUse> uses = getUsesOfPolicy(policy);
+			if (uses.isEmpty())
+				writer.write(CertInventory.csvValue(policy) + ",,,,\r\n");
+
+			for (PolicyUse use : uses)
+			{
+				final String prefix = CertInventory.csvValue(policy) + "," + CertInventory.csvValue(use.groupName) + "," + use.use + "," + use.getDirection() + ",";
+				final Set<String> groupDomains = getDomainsOfGroup(use.groupName);
+				if (groupDomains.isEmpty())
+					writer.write(prefix + "\r\n");
+
+				for (String domain : groupDomains)
+					writer.write(prefix + CertInventory.csvValue(domain) + "\r\n");
+			}
+		}
+	}
+
+	protected static String dotId(String type, String name)
+	{
+		return dotString(type + ":" + name);
+	}
+
+	protected static String dotString(String value)
+	{
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
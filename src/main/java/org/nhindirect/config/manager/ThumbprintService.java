@@ -0,0 +1,164 @@
+package org.nhindirect.config.manager;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Computes certificate thumbprints as lower case hex strings in the same format as {@link org.nhindirect.stagent.cert.Thumbprint}.
+ * <p>
+ * Each thread reuses its own {@link MessageDigest} instances.  Thumbprints of encoded certificates are memoized per thread by the
+ * identity of the encoded array, so that printers and commands that look at the same stored record several times only hash it once
+ * without contending on a shared lock.  Cache entries are weakly referenced and are released with the arrays they belong to.
+ * Certificate objects are not memoized: they are usually decoded fresh for each use, and comparing them re-encodes the certificate.
+ */
+public class ThumbprintService
+{
+	public enum Algorithm
+	{
+		SHA1("SHA-1"),
+
+		SHA256("SHA-256");
+
+		protected final String digestName;
+
+		private Algorithm(String digestName)
+		{
+			this.digestName = digestName;
+		}
+	}
+
+	protected static final int PARALLEL_THRESHOLD = 64;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final ThumbprintService INSTANCE = new ThumbprintService();
+
+	protected final Map<Algorithm, ThreadLocal<MessageDigest>> digests;
+
+	protected final Map<Algorithm, ThreadLocal<Map<byte[], String>>> cache;
+
+	public static ThumbprintService getInstance()
+	{
+		return INSTANCE;
+	}
+
+	protected ThumbprintService()
+	{
+		digests = new EnumMap<Algorithm, ThreadLocal<MessageDigest>>(Algorithm.class);
+		cache = new EnumMap<Algorithm, ThreadLocal<Map<byte[], String>>>(Algorithm.class);
+
+		for (final Algorithm alg : Algorithm.values())
+		{
+			digests.put(alg, ThreadLocal.withInitial(() -> createDigest(alg)));
+			// arrays use identity equality, so lookups never compare array contents
+			cache.put(alg, ThreadLocal.withInitial(() -> new WeakHashMap<byte[], String>()));
+		}
+	}
+
+	/**
+	 * Gets the SHA-1 thumbprint of a certificate.
+	 * @param cert The certificate.
+	 * @return The thumbprint as a lower case hex string.
+	 */
+	public String getThumbprint(X509Certificate cert)
+	{
+		return getThumbprint(cert, Algorithm.SHA1);
+	}
+
+	/**
+	 * Gets the thumbprint of a certificate.
+	 * @param cert The certificate.
+	 * @param alg The digest algorithm.
+	 * @return The thumbprint as a lower case hex string.
+	 */
+	public String getThumbprint(X509Certificate cert, Algorithm alg)
+	{
+		try
+		{
+			return digest(cert.getEncoded(), alg);
+		}
+		catch (CertificateEncodingException e)
+		{
+			throw new IllegalArgumentException("Failed to encode certificate: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Gets the SHA-1 thumbprint of a DER encoded certificate.  Results are memoized per thread by the identity of the array.
+	 * @param encoded The DER encoding of the certificate.
+	 * @return The thumbprint as a lower case hex string.
+	 */
+	public String getThumbprint(byte[] encoded)
+	{
+		return getThumbprint(encoded, Algorithm.SHA1);
+	}
+
+	/**
+	 * Gets the thumbprint of a DER encoded certificate.  Results are memoized per thread by the identity of the array.
+	 * @param encoded The DER encoding of the certificate.
+	 * @param alg The digest algorithm.
+	 * @return The thumbprint as a lower case hex string.
+	 */
+	public String getThumbprint(byte[] encoded, Algorithm alg)
+	{
+		final Map<byte[], String> algCache = cache.get(alg).get();
+
+		String retVal = algCache.get(encoded);
+		if (retVal == null)
+		{
+			retVal = digest(encoded, alg);
+			algCache.put(encoded, retVal);
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Gets the thumbprints of a list of certificates, hashing large lists in parallel.
+	 * @param certs The certificates.
+	 * @param alg The digest algorithm.
+	 * @return The thumbprints in the same order as the certificates.
+	 */
+	public List<String> getThumbprints(List<X509Certificate> certs, Algorithm alg)
+	{
+		if (certs.size() < PARALLEL_THRESHOLD)
+			return certs.stream().map(cert -> getThumbprint(cert, alg)).collect(Collectors.toList());
+
+		return certs.parallelStream().map(cert -> getThumbprint(cert, alg)).collect(Collectors.toList());
+	}
+
+	protected String digest(byte[] data, Algorithm alg)
+	{
+		final MessageDigest md = digests.get(alg).get();
+		md.reset();
+
+		final byte[] digest = md.digest(data);
+		final char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; ++i)
+		{
+			hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+			hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0f];
+		}
+
+		return new String(hex);
+	}
+
+	protected static MessageDigest createDigest(Algorithm alg)
+	{
+		try
+		{
+			return MessageDigest.getInstance(alg.digestName);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("Digest algorithm " + alg.digestName + " is not available", e);
+		}
+	}
+}
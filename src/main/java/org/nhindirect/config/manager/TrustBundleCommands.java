@@ -1,23 +1,65 @@
 package org.nhindirect.config.manager;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.nhind.config.rest.DomainService;
 import org.nhind.config.rest.TrustBundleService;
+import org.nhindirect.common.crypto.CryptoExtensions;
 import org.nhindirect.common.tooling.Command;
 import org.nhindirect.common.tooling.StringArrayUtil;
 import org.nhindirect.config.manager.printers.BundleAnchorRecordPrinter;
 import org.nhindirect.config.manager.printers.TrustBundleRecordPrinter;
-import org.nhindirect.config.model.Certificate;
+import org.nhindirect.config.model.BundleRefreshError;
 import org.nhindirect.config.model.Domain;
 import org.nhindirect.config.model.TrustBundle;
 import org.nhindirect.config.model.TrustBundleAnchor;
 import org.nhindirect.config.model.TrustBundleDomainReltn;
+import org.nhindirect.config.model.utils.CertUtils;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
 
 public class TrustBundleCommands 
 {
@@ -38,6 +80,32 @@ public class TrustBundleCommands
             "\r\n  bundleName " +
             "\r\n\t bundleName: The name of the bundle to refresh.";    
     
+    private static final String REFRESH_ALL_TRUST_BUNDLES = "Refreshes all trust bundles in the system, optionally waiting for the refreshes to complete." +
+            "\r\n  [--wait] [--parallel N] [--timeout minutes]" +
+            "\r\n\t --wait: Optional.  Wait for every bundle to finish refreshing and print a completion table." +
+            "\r\n\t --parallel N: Optional.  Maximum number of refresh requests submitted at the same time.  Defaults to " + ParallelTasks.DEFAULT_PARALLELISM + "." +
+            "\r\n\t --timeout minutes: Optional.  Maximum time to wait for the refreshes to complete.  Defaults to 10.";
+    
+    private static final String DIFF_TRUST_BUNDLE = "Compares a locally downloaded copy of a trust bundle with the anchors currently stored for the bundle.  " +
+    		"If the bundle has a signing certificate, the signature of the local copy is verified first." +
+            "\r\n  bundleName bundleFile" +
+            "\r\n\t bundleName: The name of the bundle to compare." +
+            "\r\n\t bundleFile: Fully qualified path and file name of the downloaded PKCS7 bundle.  " +
+            "Place the path in quotes (\"\") if there are spaces in the path or name.";
+    
+    private static final String SYNC_TRUST_BUNDLES = "Synchronizes the trust bundles in the system with the bundle definitions in a YAML file.  " +
+    		"Bundles in the file that do not exist are added, and bundles whose URL, refresh interval, or signing certificate differ are updated.  " +
+    		"Bundles that are not in the file are only deleted with --prune." +
+            "\r\n  definitionFile [--refresh] [--prune] [--dryRun] [--parallel N]" +
+            "\r\n\t definitionFile: Fully qualified path and file name of the YAML file.  The file contains a bundles list where each entry has a name, url, " +
+            "refreshInterval in minutes, and an optional signingCert path.  The refreshInterval is required for new bundles; if it is left out for an " +
+            "existing bundle, the bundle keeps its current interval.  If signingCert is left out, an existing bundle keeps its current signing certificate; " +
+            "an empty signingCert removes it.  Bundle names are matched without regard to case." +
+            "\r\n\t --refresh: Optional.  Refresh updated bundles whose URL changed." +
+            "\r\n\t --prune: Optional.  Delete bundles that are not in the file." +
+            "\r\n\t --dryRun: Optional.  Only print the changes that would be made." +
+            "\r\n\t --parallel N: Optional.  Maximum number of concurrent requests to the configuration service.  Defaults to " + ParallelTasks.DEFAULT_PARALLELISM + ".";
+    
 	private static final String LIST_BUNDLES_USAGE = "Lists all trust bundles in the system";
     
     private static final String ADD_BUNDLE_TO_DOMAIN = "Adds a trust bundle to a domain." +
@@ -57,13 +125,46 @@ public class TrustBundleCommands
             "\r\n\t bundleName: The name of the bundle to add to the domain." +
             "\r\n\t domainName: The name of the domain that the bundle will be added to."; 
     
+    private static final String APPLY_BUNDLE_MATRIX = "Associates and removes trust bundles from domains in bulk.  Associations that already exist with the same directions are skipped." +
+            "\r\n  matrixFile [parallel]" +
+            "\r\n\t matrixFile: Fully qualified path and file name of a file with one row per line.  A row of the form bundleName,domainName,trustIncoming,trustOutgoing " +
+            "associates the bundle with the domain, and a row of the form bundleName,domainName,remove removes the bundle from the domain.  " +
+            "Blank lines and lines starting with # are ignored." +
+            "\r\n\t [parallel]: Optional.  Maximum number of concurrent requests to the configuration service.  Defaults to " + ParallelTasks.DEFAULT_PARALLELISM + ".";
+    
+    private static final String FIND_ANCHOR_IN_BUNDLES = "Finds the trust bundles that contain an anchor and the domains those bundles are associated with.  " +
+    		"The anchors of all bundles are indexed on the first search and the index is reused for the rest of the session." +
+            "\r\n  thumbprint|subject" +
+            "\r\n\t thumbprint|subject: The SHA-1 thumbprint of the anchor or its subject common name.  Common names are case insensitive and may contain the * wildcard.  " +
+            "Place the value in quotes (\"\") if it contains spaces.";
+    
+    private static final String REFRESH_BUNDLE_ANCHOR_INDEX = "Discards the bundle anchor index used by FindAnchorInBundles so that it is rebuilt on the next search.  " +
+    		"Use this after a bundle refresh completes or after domains are changed.";
+    
+    private static final String BUNDLE_EXPIRY_REPORT = "Reports trust bundle anchors that expire within a number of days, aggregated by bundle and by the domains the bundles are associated with." +
+            "\r\n  days [top]" +
+            "\r\n\t days: Number of days from now within which an anchor is reported as expiring.  Anchors that have already expired are included." +
+            "\r\n\t [top]: Optional.  Number of soonest expiring anchors to list.  Defaults to 20.";
+    
 	private static final String LIST_DOMAIN_BUNDLES_USAGE = "Lists all trust bundles associated to a domain" +
             "\r\n  domainName " +
             "\r\n\t domainName: The name of the domain to list bundles for.";
 
 	private static final String LIST_BUNDLE_ANCHORS = "Lists all anchors within a trust bundle" +
-            "\r\n  bundleName" +
-            "\r\n\t bundleName: The name of the bundle to list anchors for.";
+            "\r\n  bundleName [--cn text] [--expiringBefore date] [--offset N] [--limit N]" +
+            "\r\n\t bundleName: The name of the bundle to list anchors for." +
+            "\r\n\t --cn text: Optional.  Only list anchors whose subject common name contains the text (case insensitive)." +
+            "\r\n\t --expiringBefore date: Optional.  Only list anchors that expire before the date.  Format is yyyy-MM-dd." +
+            "\r\n\t --offset N: Optional.  Number of matching anchors to skip.  Defaults to 0." +
+            "\r\n\t --limit N: Optional.  Maximum number of anchors to list.  Defaults to all.";
+	
+	protected static final long DEFAULT_REFRESH_TIMEOUT_MINUTES = 10;
+	
+	protected static final int ANCHOR_PRINT_BATCH_SIZE = 256;
+	
+	protected static final long MIN_REFRESH_POLL_MILLIS = 1000;
+	
+	protected static final long MAX_REFRESH_POLL_MILLIS = 30000;
 	
 	protected TrustBundleService bundleService;
 	
@@ -73,6 +174,8 @@ public class TrustBundleCommands
 	
 	protected BundleAnchorRecordPrinter anchorPrinter;
 	
+	protected volatile BundleAnchorIndex anchorIndex;
+	
 	public TrustBundleCommands(TrustBundleService bundleService, DomainService domainService)
 	{
 		this.bundleService = bundleService;
@@ -114,6 +217,7 @@ public class TrustBundleCommands
 					newBundle.setSigningCertificateData(signCertData);
 				}
 				bundleService.addTrustBundle(newBundle);
+				invalidateAnchorIndex();
 				System.out.println("Trust bundle " + bundleName + " added to the system.");
 			}
 			
@@ -140,6 +244,7 @@ public class TrustBundleCommands
 			}
 			
 			bundleService.refreshTrustBundle(bundleName);
+			invalidateAnchorIndex();
 			
 			System.out.println("Initiated refresh on bundle " + bundle.getBundleName());
 			
@@ -150,6 +255,591 @@ public class TrustBundleCommands
 		}		
 	}
 	
+	@Command(name = "RefreshAllTrustBundles", usage = REFRESH_ALL_TRUST_BUNDLES)
+    public void refreshAllTrustBundles(String[] args)
+	{  
+		boolean wait = false;
+		int parallel = ParallelTasks.DEFAULT_PARALLELISM;
+		long timeoutMillis = TimeUnit.MINUTES.toMillis(DEFAULT_REFRESH_TIMEOUT_MINUTES);
+		for (int i = 0; i < args.length; ++i)
+		{
+			if (args[i].equalsIgnoreCase("--wait"))
+				wait = true;
+			else if (args[i].equalsIgnoreCase("--parallel") && i + 1 < args.length)
+				parallel = ParallelTasks.parseParallelism(args[++i]);
+			else if (args[i].equalsIgnoreCase("--timeout") && i + 1 < args.length)
+			{
+				final String timeout = args[++i];
+				try
+				{
+					timeoutMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(timeout));
+				}
+				catch (NumberFormatException e)
+				{
+					timeoutMillis = -1;
+				}
+				
+				if (timeoutMillis <= 0)
+				{
+					System.out.println("Invalid timeout " + timeout + ".  The timeout must be a positive number of minutes.");
+					return;
+				}
+			}
+			else
+			{
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		
+		final Collection<TrustBundle> bundles;
+		try
+		{
+			bundles = bundleService.getTrustBundles(false);
+			if (bundles == null || bundles.size() == 0)
+			{
+				System.out.println("No bundles found");
+				return;
+			}
+		}
+		catch (Exception e)
+		{
+			System.out.println("Error getting trust bundles: " + e.getMessage());
+			return;
+		}
+		
+		// remember where each bundle was before the refresh so that completion can be detected by the timestamps advancing
+		final Map<String, BundleRefresh> refreshes = new LinkedHashMap<String, BundleRefresh>();
+		for (TrustBundle bundle : bundles)
+			refreshes.put(bundle.getBundleName(), new BundleRefresh(bundle));
+		
+		for (ParallelTasks.Outcome<BundleRefresh, Void> outcome : 
+			ParallelTasks.<BundleRefresh, Void>invokeAll(refreshes.values(), parallel, refresh ->
+			{
+				refresh.started = System.currentTimeMillis();
+				bundleService.refreshTrustBundle(refresh.bundleName);
+				return null;
+			}))
+		{
+			if (!outcome.isSuccess())
+			{
+				outcome.getItem().status = "TRIGGER FAILED";
+				outcome.getItem().detail = outcome.getError().getMessage();
+			}
+		}
+		
+		invalidateAnchorIndex();
+		
+		if (!wait)
+		{
+			for (BundleRefresh refresh : refreshes.values())
+				if (refresh.status != null)
+					System.out.println("Error refreshing trust bundle " + refresh.bundleName + ": " + refresh.detail);
+			
+			System.out.println("Initiated refresh on " + refreshes.values().stream().filter(refresh -> refresh.status == null).count() + " bundles");
+			return;
+		}
+		
+		System.out.println("Waiting for " + refreshes.size() + " bundles to refresh");
+		
+		// a single listing per round is cheaper than polling each bundle, and the interval backs off while bundles are still pending
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		long pollMillis = MIN_REFRESH_POLL_MILLIS;
+		int pending = countPending(refreshes.values());
+		while (pending > 0 && System.currentTimeMillis() < deadline)
+		{
+			try
+			{
+				Thread.sleep(Math.min(pollMillis, Math.max(0, deadline - System.currentTimeMillis())));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+			pollMillis = Math.min(pollMillis * 2, MAX_REFRESH_POLL_MILLIS);
+			
+			try
+			{
+				final Collection<TrustBundle> current = bundleService.getTrustBundles(false);
+				if (current != null)
+				{
+					final long now = System.currentTimeMillis();
+					for (TrustBundle bundle : current)
+					{
+						final BundleRefresh refresh = refreshes.get(bundle.getBundleName());
+						if (refresh != null && refresh.status == null)
+							refresh.update(bundle, now);
+					}
+				}
+			}
+			catch (Exception e)
+			{
+				System.out.println("Error polling trust bundles: " + e.getMessage());
+			}
+			
+			final int stillPending = countPending(refreshes.values());
+			if (stillPending != pending)
+				System.out.println((refreshes.size() - stillPending) + "/" + refreshes.size() + " bundles complete");
+			pending = stillPending;
+		}
+		
+		for (BundleRefresh refresh : refreshes.values())
+			if (refresh.status == null)
+				refresh.status = "TIMED OUT";
+		
+		System.out.println(String.format("%-50s %-15s %10s  %s", "Bundle Name", "Status", "Seconds", "Detail"));
+		for (BundleRefresh refresh : refreshes.values())
+			System.out.println(String.format("%-50s %-15s %10s  %s", refresh.bundleName, refresh.status, 
+				(refresh.completed > 0) ? String.format("%.1f", (refresh.completed - refresh.started) / 1000.0) : "", 
+				(refresh.detail == null) ? "" : refresh.detail));
+	}
+	
+	protected static int countPending(Collection<BundleRefresh> refreshes)
+	{
+		int retVal = 0;
+		for (BundleRefresh refresh : refreshes)
+			if (refresh.status == null)
+				++retVal;
+		
+		return retVal;
+	}
+	
+	/**
+	 * Tracks the refresh of a single bundle.  A refresh is complete when the bundle's last refresh attempt moves past the value
+	 * it had before the refresh was triggered.  The config service only moves the last successful refresh when the bundle content
+	 * changed, so an attempt without a new successful refresh is told apart by the bundle's last refresh error.
+	 */
+	protected static class BundleRefresh
+	{
+		protected final String bundleName;
+		protected final long lastAttempt;
+		protected final long lastSuccess;
+		protected volatile long started;
+		protected long completed;
+		protected volatile String status;
+		protected volatile String detail;
+		
+		protected BundleRefresh(TrustBundle bundle)
+		{
+			this.bundleName = bundle.getBundleName();
+			this.lastAttempt = toMillis(bundle.getLastRefreshAttempt());
+			this.lastSuccess = toMillis(bundle.getLastSuccessfulRefresh());
+		}
+		
+		protected void update(TrustBundle bundle, long now)
+		{
+			final long attempt = toMillis(bundle.getLastRefreshAttempt());
+			final long success = toMillis(bundle.getLastSuccessfulRefresh());
+			if (success > lastSuccess)
+			{
+				status = "REFRESHED";
+				completed = now;
+			}
+			else if (attempt > lastAttempt)
+			{
+				final BundleRefreshError error = bundle.getLastRefreshError();
+				completed = now;
+				if (error == null || error == BundleRefreshError.SUCCESS)
+				{
+					status = "UNCHANGED";
+					detail = "Bundle content has not changed since the last refresh";
+				}
+				else
+				{
+					status = "FAILED";
+					detail = "Refresh error: " + error;
+				}
+			}
+		}
+		
+		protected static long toMillis(Calendar cal)
+		{
+			return (cal == null) ? 0 : cal.getTimeInMillis();
+		}
+	}
+	
+	@Command(name = "DiffTrustBundle", usage = DIFF_TRUST_BUNDLE)
+    public void diffTrustBundle(String[] args)
+	{
+		final String bundleName = StringArrayUtil.getRequiredValue(args, 0);
+		final String bundleFile = StringArrayUtil.getRequiredValue(args, 1);
+		
+		// the stored bundle is fetched while the local file is read
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			final Future<TrustBundle> bundleFuture = executor.submit(() -> bundleService.getTrustBundle(bundleName));
+			
+			final byte[] rawBundle;
+			try
+			{
+				rawBundle = FileUtils.readFileToByteArray(new File(bundleFile));
+			}
+			catch (IOException e)
+			{
+				System.out.println("Error reading file " + bundleFile + " : " + e.getMessage());
+				return;
+			}
+			
+			final TrustBundle bundle;
+			try
+			{
+				bundle = bundleFuture.get();
+			}
+			catch (ExecutionException e)
+			{
+				System.out.println("Error getting trust bundle: " + e.getCause().getMessage());
+				return;
+			}
+			
+			if (bundle == null)
+			{
+				System.out.println("Bundle with name " +  bundleName + " does not exist.");
+				return;
+			}
+			
+			final List<X509Certificate> localAnchors;
+			try
+			{
+				localAnchors = parseBundle(rawBundle, bundle.getSigningCertificateData());
+			}
+			catch (Exception e)
+			{
+				System.out.println("Error parsing bundle file " + bundleFile + " : " + e.getMessage());
+				return;
+			}
+			
+			final Collection<TrustBundleAnchor> storedAnchors = (bundle.getTrustBundleAnchors() == null) ? 
+					Collections.<TrustBundleAnchor>emptyList() : bundle.getTrustBundleAnchors();
+			
+			final List<String> localTps = ThumbprintService.getInstance().getThumbprints(localAnchors, ThumbprintService.Algorithm.SHA1);
+			final Map<String, X509Certificate> local = new TreeMap<String, X509Certificate>();
+			for (int i = 0; i < localAnchors.size(); ++i)
+				local.put(localTps.get(i), localAnchors.get(i));
+			
+			final Map<String, TrustBundleAnchor> stored = storedAnchors.parallelStream()
+					.collect(Collectors.toMap(anchor -> ThumbprintService.getInstance().getThumbprint(anchor.getAnchorData()), 
+							anchor -> anchor, (a1, a2) -> a1, TreeMap::new));
+			
+			final List<String> added = new ArrayList<String>();
+			final List<String> unchanged = new ArrayList<String>();
+			for (Map.Entry<String, X509Certificate> entry : local.entrySet())
+			{
+				final String line = toDiffLine(entry.getKey(), entry.getValue());
+				if (stored.containsKey(entry.getKey()))
+					unchanged.add(line);
+				else
+					added.add(line);
+			}
+			
+			final List<String> removed = new ArrayList<String>();
+			for (Map.Entry<String, TrustBundleAnchor> entry : stored.entrySet())
+			{
+				if (local.containsKey(entry.getKey()))
+					continue;
+				
+				try
+				{
+					removed.add(toDiffLine(entry.getKey(), entry.getValue().getAsX509Certificate()));
+				}
+				catch (Exception e)
+				{
+					removed.add(entry.getKey() + "  ERROR: " + e.getMessage());
+				}
+			}
+			
+			printDiffSection("Added", added);
+			printDiffSection("Removed", removed);
+			printDiffSection("Unchanged", unchanged);
+			System.out.println(added.size() + " added, " + removed.size() + " removed, " + unchanged.size() + " unchanged");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Extracts the anchors of a PKCS7 bundle.  When a signing certificate is provided, the bundle must be CMS signed data with a
+	 * signature that verifies against the certificate, and the anchors are read from the signed content.
+	 */
+	protected static List<X509Certificate> parseBundle(byte[] rawBundle, byte[] signingCertData) throws Exception
+	{
+		byte[] bundleData = rawBundle;
+		if (signingCertData != null && signingCertData.length > 0)
+		{
+			final X509Certificate signingCert = CertUtils.toX509Certificate(signingCertData);
+			final CMSSignedData signedData = new CMSSignedData(rawBundle);
+			
+			boolean verified = false;
+			for (SignerInformation signer : signedData.getSignerInfos().getSigners())
+			{
+				if (signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider(CryptoExtensions.getJCEProviderName()).build(signingCert)))
+				{
+					verified = true;
+					break;
+				}
+			}
+			
+			if (!verified)
+				throw new CertificateException("Bundle signature does not verify against the bundle signing certificate.");
+			
+			System.out.println("Bundle signature verified against signing certificate " + signingCert.getSubjectX500Principal().getName());
+			
+			bundleData = (byte[])signedData.getSignedContent().getContent();
+		}
+		
+		final List<X509Certificate> retVal = new ArrayList<X509Certificate>();
+		for (Certificate cert : 
+			CertificateFactory.getInstance("X.509").generateCertificates(new ByteArrayInputStream(bundleData)))
+			retVal.add((X509Certificate)cert);
+		
+		return retVal;
+	}
+	
+	protected static String toDiffLine(String thumbprint, X509Certificate cert)
+	{
+		return String.format("%s  %-20s %s", thumbprint, new SimpleDateFormat("MM-dd-yyyy").format(cert.getNotAfter()), 
+				cert.getSubjectX500Principal().getName());
+	}
+	
+	protected static void printDiffSection(String title, List<String> lines)
+	{
+		System.out.println(title + " (" + lines.size() + ")");
+		for (String line : lines)
+			System.out.println("\t" + line);
+		
+		System.out.println();
+	}
+	
+	@Command(name = "SyncTrustBundles", usage = SYNC_TRUST_BUNDLES)
+    public void syncTrustBundles(String[] args)
+	{
+		final String definitionFile = StringArrayUtil.getRequiredValue(args, 0);
+		boolean refresh = false;
+		boolean prune = false;
+		boolean dryRun = false;
+		int parallel = ParallelTasks.DEFAULT_PARALLELISM;
+		for (int i = 1; i < args.length; ++i)
+		{
+			if (args[i].equalsIgnoreCase("--refresh"))
+				refresh = true;
+			else if (args[i].equalsIgnoreCase("--prune"))
+				prune = true;
+			else if (args[i].equalsIgnoreCase("--dryRun"))
+				dryRun = true;
+			else if (args[i].equalsIgnoreCase("--parallel") && i + 1 < args.length)
+				parallel = ParallelTasks.parseParallelism(args[++i]);
+			else
+			{
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		
+		final Map<String, TrustBundle> definitions;
+		try
+		{
+			definitions = readBundleDefinitions(new File(definitionFile));
+		}
+		catch (Exception e)
+		{
+			System.out.println("Error reading bundle definitions from " + definitionFile + " : " + e.getMessage());
+			return;
+		}
+		
+		final Map<String, TrustBundle> existing = new TreeMap<String, TrustBundle>(String.CASE_INSENSITIVE_ORDER);
+		try
+		{
+			final Collection<TrustBundle> bundles = bundleService.getTrustBundles(false);
+			if (bundles != null)
+				for (TrustBundle bundle : bundles)
+					existing.put(bundle.getBundleName(), bundle);
+		}
+		catch (Exception e)
+		{
+			System.out.println("Error getting trust bundles: " + e.getMessage());
+			return;
+		}
+		
+		final List<BundleChange> changes = new ArrayList<BundleChange>();
+		for (TrustBundle definition : definitions.values())
+		{
+			final TrustBundle current = existing.get(definition.getBundleName());
+			if (definition.getRefreshInterval() < 0)
+			{
+				if (current == null)
+				{
+					System.out.println("Bundle " + definition.getBundleName() + " does not exist and requires a refreshInterval.  No changes applied.");
+					return;
+				}
+				
+				definition.setRefreshInterval(current.getRefreshInterval());
+			}
+			
+			if (current != null)
+			{
+				// the stored name is kept when the file spells it with a different case
+				definition.setBundleName(current.getBundleName());
+				if (definition.getSigningCertificateData() == null)
+					definition.setSigningCertificateData(current.getSigningCertificateData());
+			}
+			if (definition.getSigningCertificateData() != null && definition.getSigningCertificateData().length == 0)
+				definition.setSigningCertificateData(null);
+			
+			if (current == null)
+				changes.add(new BundleChange(BundleChange.Type.ADD, definition, false));
+			else if (!StringUtils.equals(current.getBundleURL(), definition.getBundleURL()) || current.getRefreshInterval() != definition.getRefreshInterval() || 
+					!Arrays.equals(nullToEmpty(current.getSigningCertificateData()), nullToEmpty(definition.getSigningCertificateData())))
+				changes.add(new BundleChange(BundleChange.Type.UPDATE, definition, 
+						refresh && !StringUtils.equals(current.getBundleURL(), definition.getBundleURL())));
+		}
+		int unlisted = 0;
+		for (TrustBundle current : existing.values())
+		{
+			if (definitions.containsKey(current.getBundleName()))
+				continue;
+			
+			if (prune)
+				changes.add(new BundleChange(BundleChange.Type.DELETE, current, false));
+			else
+				++unlisted;
+		}
+		
+		if (unlisted > 0)
+			System.out.println(unlisted + " trust bundles that are not in the file are kept.  Use --prune to delete them.");
+		
+		if (changes.isEmpty())
+		{
+			System.out.println("All " + definitions.size() + " trust bundles are up to date");
+			return;
+		}
+		
+		for (BundleChange change : changes)
+			System.out.println(String.format("%-8s%s%s", change.type, change.bundle.getBundleName(), change.refresh ? " (refresh)" : ""));
+		
+		if (dryRun)
+			return;
+		
+		int failed = 0;
+		for (ParallelTasks.Outcome<BundleChange, Void> outcome : 
+			ParallelTasks.<BundleChange, Void>invokeAll(changes, parallel, change ->
+			{
+				switch (change.type)
+				{
+					case ADD:
+						bundleService.addTrustBundle(change.bundle);
+						break;
+					case UPDATE:
+						bundleService.updateTrustBundleAttributes(change.bundle.getBundleName(), change.bundle);
+						if (change.refresh)
+							bundleService.refreshTrustBundle(change.bundle.getBundleName());
+						break;
+					case DELETE:
+						bundleService.deleteTrustBundle(change.bundle.getBundleName());
+						break;
+				}
+				return null;
+			}))
+		{
+			if (!outcome.isSuccess())
+			{
+				++failed;
+				System.out.println("Error applying " + outcome.getItem().type + " to trust bundle " + outcome.getItem().bundle.getBundleName() + 
+						" : " + outcome.getError().getMessage());
+			}
+		}
+		invalidateAnchorIndex();
+		
+		System.out.println("Applied " + (changes.size() - failed) + " of " + changes.size() + " trust bundle changes");
+	}
+	
+	/**
+	 * Reads bundle definitions from a YAML document with a bundles list.  Each entry has a name, url, refreshInterval in minutes,
+	 * and an optional signingCert file.  A missing refreshInterval is returned as -1, a missing signingCert as null, and an empty
+	 * signingCert as empty data.
+	 * @return The definitions keyed by bundle name without regard to case.
+	 */
+	protected static Map<String, TrustBundle> readBundleDefinitions(File file) throws Exception
+	{
+		final Object document;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file)))
+		{
+			document = new Yaml(new SafeConstructor()).load(in);
+		}
+		
+		if (!(document instanceof Map) || !(((Map<?, ?>)document).get("bundles") instanceof List))
+			throw new IllegalArgumentException("The file does not contain a bundles list");
+		
+		final Map<String, TrustBundle> retVal = new TreeMap<String, TrustBundle>(String.CASE_INSENSITIVE_ORDER);
+		int entryNumber = 0;
+		for (Object entry : (List<?>)((Map<?, ?>)document).get("bundles"))
+		{
+			++entryNumber;
+			if (!(entry instanceof Map))
+				throw new IllegalArgumentException("Bundle entry " + entryNumber + " is not a map");
+			
+			final Map<?, ?> fields = (Map<?, ?>)entry;
+			final String name = (fields.get("name") == null) ? "" : fields.get("name").toString().trim();
+			final String url = (fields.get("url") == null) ? "" : fields.get("url").toString().trim();
+			if (name.isEmpty() || url.isEmpty())
+				throw new IllegalArgumentException("Bundle entry " + entryNumber + " requires a name and url");
+			
+			if (retVal.containsKey(name))
+				throw new IllegalArgumentException("Bundle " + name + " is defined more than once");
+			
+			final TrustBundle bundle = new TrustBundle();
+			bundle.setBundleName(name);
+			bundle.setBundleURL(url);
+			bundle.setRefreshInterval((fields.get("refreshInterval") == null) ? -1 : 
+				Integer.parseInt(fields.get("refreshInterval").toString().trim()) * 60); // convert minutes to seconds
+			if (fields.get("refreshInterval") != null && bundle.getRefreshInterval() < 0)
+				throw new IllegalArgumentException("Bundle " + name + " has a negative refreshInterval");
+			
+			if (fields.containsKey("signingCert"))
+			{
+				final Object signingCert = fields.get("signingCert");
+				bundle.setSigningCertificateData((signingCert == null || signingCert.toString().trim().isEmpty()) ? new byte[0] : 
+					FileUtils.readFileToByteArray(new File(signingCert.toString().trim())));
+			}
+			
+			retVal.put(name, bundle);
+		}
+		
+		return retVal;
+	}
+	
+	protected static byte[] nullToEmpty(byte[] data)
+	{
+		return (data == null) ? new byte[0] : data;
+	}
+	
+	protected static class BundleChange
+	{
+		protected enum Type
+		{
+			ADD,
+			UPDATE,
+			DELETE
+		}
+		
+		protected final Type type;
+		protected final TrustBundle bundle;
+		protected final boolean refresh;
+		
+		protected BundleChange(Type type, TrustBundle bundle, boolean refresh)
+		{
+			this.type = type;
+			this.bundle = bundle;
+			this.refresh = refresh;
+		}
+	}
+	
 	@Command(name = "DeleteTrustBundle", usage = REMOVE_TRUST_BUNDLE)
     public void removeTrustBundle(String[] args)
 	{
@@ -166,6 +856,7 @@ public class TrustBundleCommands
 			}
 			
 			bundleService.deleteTrustBundle(bundleName);
+			invalidateAnchorIndex();
 			
 			System.out.println("Trust bundle " + bundleName + " deleted");
 			
@@ -243,6 +934,7 @@ public class TrustBundleCommands
 			}
 			
 			bundleService.disassociateTrustBundleFromDomain(bundleName, domainName);
+			invalidateAnchorIndex();
 			
 			System.out.println("Trust bundle " + bundle.getBundleName() + " removed from domain " + domain.getDomainName());
 			
@@ -269,15 +961,9 @@ public class TrustBundleCommands
 				return;
 			}
 			
-			Certificate signingCert = null;
-			if (bundle.getSigningCertificateData() != null)
-			{
-				signingCert = new Certificate();
-				signingCert.setData(bundle.getSigningCertificateData());
-			}
-			
 			bundle.setBundleURL(bundleURL);
 			bundleService.updateTrustBundleAttributes(bundleName, bundle);
+			invalidateAnchorIndex();
 			
 			System.out.println("Trust bundle " + bundle.getBundleName() + " URL updated to " + bundleURL);
 			
@@ -329,6 +1015,7 @@ public class TrustBundleCommands
 			}
 			
 			bundleService.associateTrustBundleToDomain(bundleName, domainName, trustIncoming, trustOutgoing);
+			invalidateAnchorIndex();
 			
 			System.out.println("Trust bundle " + bundle.getBundleName() + " added to domain " + domain.getDomainName());
 			
@@ -339,6 +1026,511 @@ public class TrustBundleCommands
 		}
 	}
 	
+	@Command(name = "ApplyBundleMatrix", usage = APPLY_BUNDLE_MATRIX)
+    public void applyBundleMatrix(String[] args)
+	{
+		final String matrixFile = StringArrayUtil.getRequiredValue(args, 0);
+		final int parallel = ParallelTasks.parseParallelism(StringArrayUtil.getOptionalValue(args, 1, ""));
+		
+		final List<BundleAssociation> rows = new ArrayList<BundleAssociation>();
+		try
+		{
+			int lineNumber = 0;
+			for (String line : FileUtils.readLines(new File(matrixFile), StandardCharsets.UTF_8))
+			{
+				++lineNumber;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				
+				final String[] fields = line.split(",");
+				for (int i = 0; i < fields.length; ++i)
+					fields[i] = fields[i].trim();
+				
+				if (fields.length == 3 && fields[2].equalsIgnoreCase("remove"))
+					rows.add(new BundleAssociation(fields[0], fields[1], false, false, true));
+				else if (fields.length == 4)
+					rows.add(new BundleAssociation(fields[0], fields[1], Boolean.parseBoolean(fields[2]), Boolean.parseBoolean(fields[3]), false));
+				else
+				{
+					System.out.println("Invalid row at line " + lineNumber + " : " + line);
+					return;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error reading file " + matrixFile + " : " + e.getMessage());
+			return;
+		}
+		
+		if (rows.isEmpty())
+		{
+			System.out.println("No rows found in " + matrixFile);
+			return;
+		}
+		
+		// resolve every bundle and domain with a single listing each
+		final Map<String, TrustBundle> bundles = new HashMap<String, TrustBundle>();
+		final Map<String, Domain> domains = new HashMap<String, Domain>();
+		try
+		{
+			final Collection<TrustBundle> allBundles = bundleService.getTrustBundles(false);
+			if (allBundles != null)
+				for (TrustBundle bundle : allBundles)
+					bundles.put(bundle.getBundleName(), bundle);
+			
+			final Collection<Domain> allDomains = domainService.searchDomains("", null);
+			if (allDomains != null)
+				for (Domain domain : allDomains)
+					domains.put(domain.getDomainName().toLowerCase(Locale.ENGLISH), domain);
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup bundles and domains: " + e.getMessage());
+			return;
+		}
+		
+		final Set<String> missing = new LinkedHashSet<String>();
+		final Map<String, Domain> rowDomains = new LinkedHashMap<String, Domain>();
+		for (BundleAssociation row : rows)
+		{
+			if (!bundles.containsKey(row.bundleName))
+				missing.add("bundle " + row.bundleName);
+			
+			final Domain domain = domains.get(row.domainName.toLowerCase(Locale.ENGLISH));
+			if (domain == null)
+				missing.add("domain " + row.domainName);
+			else
+			{
+				row.domainName = domain.getDomainName();
+				rowDomains.put(domain.getDomainName(), domain);
+			}
+		}
+		
+		if (!missing.isEmpty())
+		{
+			System.out.println("The following do not exist in the system: " + String.join(", ", missing));
+			return;
+		}
+		
+		final Map<String, Map<String, TrustBundleDomainReltn>> existing = new HashMap<String, Map<String, TrustBundleDomainReltn>>();
+		for (ParallelTasks.Outcome<Domain, Collection<TrustBundleDomainReltn>> outcome : 
+			ParallelTasks.invokeAll(rowDomains.values(), parallel, domain -> bundleService.getTrustBundlesByDomain(domain.getDomainName(), false)))
+		{
+			if (!outcome.isSuccess())
+			{
+				System.out.println("Failed to lookup bundles for domain " + outcome.getItem().getDomainName() + " : " + outcome.getError().getMessage());
+				return;
+			}
+			
+			final Map<String, TrustBundleDomainReltn> domainReltns = new HashMap<String, TrustBundleDomainReltn>();
+			if (outcome.getResult() != null)
+				for (TrustBundleDomainReltn reltn : outcome.getResult())
+					domainReltns.put(reltn.getTrustBundle().getBundleName(), reltn);
+			
+			existing.put(outcome.getItem().getDomainName(), domainReltns);
+		}
+		
+		// the last row for a bundle and domain pair wins
+		final Map<String, BundleAssociation> changes = new LinkedHashMap<String, BundleAssociation>();
+		int unchanged = 0;
+		for (BundleAssociation row : rows)
+			changes.put(row.bundleName + "\n" + row.domainName, row);
+		
+		for (Iterator<BundleAssociation> iter = changes.values().iterator(); iter.hasNext();)
+		{
+			final BundleAssociation change = iter.next();
+			change.existing = existing.get(change.domainName).get(change.bundleName);
+			
+			if (change.remove ? change.existing == null : 
+				(change.existing != null && change.existing.isIncoming() == change.incoming && change.existing.isOutgoing() == change.outgoing))
+			{
+				++unchanged;
+				iter.remove();
+			}
+		}
+		
+		if (changes.isEmpty())
+		{
+			System.out.println("All " + unchanged + " associations are already up to date");
+			return;
+		}
+		
+		int added = 0;
+		int updated = 0;
+		int removed = 0;
+		int failed = 0;
+		int lost = 0;
+		for (ParallelTasks.Outcome<BundleAssociation, Void> outcome : 
+			ParallelTasks.<BundleAssociation, Void>invokeAll(changes.values(), parallel, change ->
+			{
+				// the service has no update operation, so a change in direction replaces the association
+				if (change.existing != null)
+				{
+					bundleService.disassociateTrustBundleFromDomain(change.bundleName, change.domainName);
+					change.disassociated = true;
+				}
+				
+				if (!change.remove)
+					bundleService.associateTrustBundleToDomain(change.bundleName, change.domainName, change.incoming, change.outgoing);
+				
+				return null;
+			}))
+		{
+			final BundleAssociation change = outcome.getItem();
+			if (!outcome.isSuccess())
+			{
+				++failed;
+				if (!change.remove && change.disassociated)
+				{
+					++lost;
+					System.out.println("Error changing the directions of bundle " + change.bundleName + " for domain " + change.domainName + 
+							" : association removed, re-add failed.  The domain no longer has the bundle : " + outcome.getError().getMessage());
+				}
+				else
+					System.out.println("Error " + (change.remove ? "removing bundle " + change.bundleName + " from" : "associating bundle " + change.bundleName + " to") + 
+						" domain " + change.domainName + " : " + outcome.getError().getMessage());
+			}
+			else if (change.remove)
+				++removed;
+			else if (change.existing != null)
+				++updated;
+			else
+				++added;
+		}
+		
+		invalidateAnchorIndex();
+		
+		System.out.println("Added " + added + ", updated " + updated + ", removed " + removed + " associations, " + 
+				unchanged + " already up to date, " + failed + " failed.");
+		if (lost > 0)
+			System.out.println(lost + " associations were removed and could not be re-added.  Associate those bundles again with AddTrustBundleToDomain.");
+	}
+	
+	/**
+	 * A requested change to the association between a bundle and a domain.
+	 */
+	protected static class BundleAssociation
+	{
+		protected final String bundleName;
+		protected String domainName;
+		protected final boolean incoming;
+		protected final boolean outgoing;
+		protected final boolean remove;
+		protected TrustBundleDomainReltn existing;
+		protected volatile boolean disassociated;
+		
+		protected BundleAssociation(String bundleName, String domainName, boolean incoming, boolean outgoing, boolean remove)
+		{
+			this.bundleName = bundleName;
+			this.domainName = domainName;
+			this.incoming = incoming;
+			this.outgoing = outgoing;
+			this.remove = remove;
+		}
+	}
+	
+	@Command(name = "FindAnchorInBundles", usage = FIND_ANCHOR_IN_BUNDLES)
+    public void findAnchorInBundles(String[] args)
+	{
+		final String term = StringArrayUtil.getRequiredValue(args, 0);
+		
+		BundleAnchorIndex index = anchorIndex;
+		if (index == null)
+		{
+			try
+			{
+				index = buildAnchorIndex();
+				if (index == null)
+					return;
+				
+				anchorIndex = index;
+			}
+			catch (Exception e)
+			{
+				System.out.println("Failed to lookup trust bundles: " + e.getMessage());
+				return;
+			}
+		}
+		
+		final List<BundleAnchorIndex.Entry> matches = index.find(term);
+		if (matches.isEmpty())
+		{
+			System.out.println("No bundle anchors found");
+			return;
+		}
+		
+		final SimpleDateFormat dtFormat = new SimpleDateFormat("MM-dd-yyyy");
+		for (BundleAnchorIndex.Entry match : matches)
+		{
+			System.out.println(match.getBundleName());
+			System.out.println("\tThumbprint: " + match.getThumbprint());
+			System.out.println("\tSubject:    " + match.getSubject());
+			if (match.getValidEnd() != null)
+				System.out.println("\tExpires:    " + dtFormat.format(match.getValidEnd().getTime()));
+			System.out.println("\tDomains:    " + (match.getDomains().isEmpty() ? "<none>" : String.join(", ", match.getDomains())));
+		}
+		System.out.println(matches.size() + " of " + index.size() + " bundle anchors matched");
+	}
+	
+	@Command(name = "RefreshBundleAnchorIndex", usage = REFRESH_BUNDLE_ANCHOR_INDEX)
+    public void refreshBundleAnchorIndex(String[] args)
+	{
+		invalidateAnchorIndex();
+		System.out.println("Bundle anchor index cleared.");
+	}
+	
+	/**
+	 * Fetches all bundles with their anchors and every domain's bundle associations concurrently and indexes the anchors.
+	 * @return The index, or null if there are no bundles.
+	 */
+	protected BundleAnchorIndex buildAnchorIndex() throws Exception
+	{
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			final Future<Collection<TrustBundle>> bundlesFuture = executor.submit(() -> bundleService.getTrustBundles(true));
+			
+			final Map<String, List<TrustBundleDomainReltn>> reltns = getReltnsByBundle();
+			
+			final Collection<TrustBundle> bundles = ParallelTasks.getResult(bundlesFuture);
+			if (bundles == null || bundles.size() == 0)
+			{
+				System.out.println("No bundles found");
+				return null;
+			}
+			
+			return BundleAnchorIndex.build(bundles, reltns);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Gets the domain associations of all bundles by fetching every domain's associations concurrently.
+	 * @return The associations keyed by bundle name.
+	 */
+	protected Map<String, List<TrustBundleDomainReltn>> getReltnsByBundle() throws Exception
+	{
+		final Collection<Domain> domains = domainService.searchDomains("", null);
+		final Map<String, List<TrustBundleDomainReltn>> retVal = new HashMap<String, List<TrustBundleDomainReltn>>();
+		if (domains != null)
+		{
+			for (ParallelTasks.Outcome<Domain, Collection<TrustBundleDomainReltn>> outcome : 
+				ParallelTasks.invokeAll(domains, domain -> bundleService.getTrustBundlesByDomain(domain.getDomainName(), false)))
+			{
+				if (!outcome.isSuccess())
+					throw outcome.getError();
+				
+				if (outcome.getResult() != null)
+					for (TrustBundleDomainReltn reltn : outcome.getResult())
+						retVal.computeIfAbsent(reltn.getTrustBundle().getBundleName(), k -> new ArrayList<TrustBundleDomainReltn>()).add(reltn);
+			}
+		}
+		
+		return retVal;
+	}
+	
+	/**
+	 * Discards the anchor index after bundles or their associations are changed so that FindAnchorInBundles does not return stale results.
+	 */
+	protected void invalidateAnchorIndex()
+	{
+		anchorIndex = null;
+	}
+	
+	@Command(name = "BundleExpiryReport", usage = BUNDLE_EXPIRY_REPORT)
+    public void bundleExpiryReport(String[] args)
+	{
+		final String daysArg = StringArrayUtil.getRequiredValue(args, 0);
+		final String topArg = StringArrayUtil.getOptionalValue(args, 1, "20");
+		int days;
+		int top;
+		try
+		{
+			days = Integer.parseInt(daysArg.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			days = -1;
+		}
+		try
+		{
+			top = Integer.parseInt(topArg.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			top = -1;
+		}
+		
+		if (days < 0)
+		{
+			System.out.println("Invalid days " + daysArg + ".  The value must be zero or a positive number of days.");
+			return;
+		}
+		if (top < 0)
+		{
+			System.out.println("Invalid top " + topArg + ".  The value must be zero or a positive number of anchors.");
+			return;
+		}
+		
+		final Collection<TrustBundle> bundles;
+		final Map<String, List<TrustBundleDomainReltn>> reltns;
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			final Future<Collection<TrustBundle>> bundlesFuture = executor.submit(() -> bundleService.getTrustBundles(true));
+			reltns = getReltnsByBundle();
+			bundles = ParallelTasks.getResult(bundlesFuture);
+			
+			if (bundles == null || bundles.size() == 0)
+			{
+				System.out.println("No bundles found");
+				return;
+			}
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to lookup trust bundles: " + e.getMessage());
+			return;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		
+		final long now = System.currentTimeMillis();
+		final long horizon = now + TimeUnit.DAYS.toMillis(days);
+		
+		// max heap on expiry so that the latest of the retained anchors is evicted first
+		final PriorityQueue<ExpiringAnchor> soonest = new PriorityQueue<ExpiringAnchor>(Math.max(1, top), 
+				(a1, a2) -> Long.compare(a2.expires, a1.expires));
+		
+		final Map<String, ExpiryCount> bundleCounts = new TreeMap<String, ExpiryCount>(String.CASE_INSENSITIVE_ORDER);
+		final Map<String, Map<String, Long>> domainAnchors = new TreeMap<String, Map<String, Long>>(String.CASE_INSENSITIVE_ORDER);
+		int anchorCount = 0;
+		for (TrustBundle bundle : bundles)
+		{
+			final ExpiryCount bundleCount = new ExpiryCount();
+			bundleCounts.put(bundle.getBundleName(), bundleCount);
+			if (bundle.getTrustBundleAnchors() == null)
+				continue;
+			
+			final List<TrustBundleDomainReltn> bundleReltns = reltns.getOrDefault(bundle.getBundleName(), 
+					Collections.<TrustBundleDomainReltn>emptyList());
+			
+			for (TrustBundleAnchor anchor : bundle.getTrustBundleAnchors())
+			{
+				++anchorCount;
+				final long expires = getValidEnd(anchor);
+				if (expires > horizon)
+					continue;
+				
+				bundleCount.add(expires, now);
+				
+				// anchors shared by several bundles of a domain are counted once for the domain
+				final String thumbprint = ThumbprintService.getInstance().getThumbprint(anchor.getAnchorData());
+				for (TrustBundleDomainReltn reltn : bundleReltns)
+					domainAnchors.computeIfAbsent(reltn.getDomain().getDomainName(), k -> new HashMap<String, Long>()).put(thumbprint, expires);
+				
+				if (top > 0 && (soonest.size() < top || expires < soonest.peek().expires))
+				{
+					soonest.add(new ExpiringAnchor(bundle.getBundleName(), anchor, expires));
+					if (soonest.size() > top)
+						soonest.poll();
+				}
+			}
+		}
+		
+		final SimpleDateFormat dtFormat = new SimpleDateFormat("MM-dd-yyyy");
+		System.out.println(anchorCount + " anchors in " + bundles.size() + " bundles checked for expiry before " + dtFormat.format(new Date(horizon)));
+		System.out.println();
+		
+		System.out.println(String.format("%-50s %10s %10s  %s", "Bundle Name", "Expired", "Expiring", "Soonest"));
+		for (Map.Entry<String, ExpiryCount> entry : bundleCounts.entrySet())
+			System.out.println(String.format("%-50s %10d %10d  %s", entry.getKey(), entry.getValue().expired, entry.getValue().expiring, 
+					(entry.getValue().soonest == Long.MAX_VALUE) ? "" : dtFormat.format(new Date(entry.getValue().soonest))));
+		System.out.println();
+		
+		System.out.println(String.format("%-50s %10s %10s  %s", "Domain Name", "Expired", "Expiring", "Soonest"));
+		if (domainAnchors.isEmpty())
+			System.out.println("\t<none>");
+		for (Map.Entry<String, Map<String, Long>> entry : domainAnchors.entrySet())
+		{
+			final ExpiryCount domainCount = new ExpiryCount();
+			for (Long expires : entry.getValue().values())
+				domainCount.add(expires, now);
+			
+			System.out.println(String.format("%-50s %10d %10d  %s", entry.getKey(), domainCount.expired, domainCount.expiring, 
+					dtFormat.format(new Date(domainCount.soonest))));
+		}
+		System.out.println();
+		
+		if (top > 0 && !soonest.isEmpty())
+		{
+			final List<ExpiringAnchor> sorted = new ArrayList<ExpiringAnchor>(soonest);
+			sorted.sort((a1, a2) -> Long.compare(a1.expires, a2.expires));
+			
+			System.out.println("Soonest expiring anchors");
+			for (ExpiringAnchor expiring : sorted)
+				System.out.println(String.format("\t%-12s %-40s %s", dtFormat.format(new Date(expiring.expires)), expiring.bundleName, 
+						getCommonName(expiring.anchor)));
+		}
+	}
+	
+	/**
+	 * Gets the expiry of a bundle anchor from the stored validity, decoding the certificate only when it is missing.
+	 */
+	protected static long getValidEnd(TrustBundleAnchor anchor)
+	{
+		if (anchor.getValidEndDate() != null)
+			return anchor.getValidEndDate().getTimeInMillis();
+		
+		try
+		{
+			return anchor.getAsX509Certificate().getNotAfter().getTime();
+		}
+		catch (Exception e)
+		{
+			// undecodable anchors are treated as expired
+			return 0;
+		}
+	}
+	
+	protected static class ExpiryCount
+	{
+		protected int expired;
+		protected int expiring;
+		protected long soonest = Long.MAX_VALUE;
+		
+		protected void add(long expires, long now)
+		{
+			if (expires < now)
+				++expired;
+			else
+				++expiring;
+			
+			soonest = Math.min(soonest, expires);
+		}
+	}
+	
+	protected static class ExpiringAnchor
+	{
+		protected final String bundleName;
+		protected final TrustBundleAnchor anchor;
+		protected final long expires;
+		
+		protected ExpiringAnchor(String bundleName, TrustBundleAnchor anchor, long expires)
+		{
+			this.bundleName = bundleName;
+			this.anchor = anchor;
+			this.expires = expires;
+		}
+	}
+	
 	@Command(name = "ListDomainBundles", usage = LIST_DOMAIN_BUNDLES_USAGE)
     public void listDomainBundles(String[] args)
 	{
@@ -382,6 +1574,38 @@ public class TrustBundleCommands
 	{
 		final String bundleName = StringArrayUtil.getRequiredValue(args, 0);
 		
+		String commonName = null;
+		Date expiringBefore = null;
+		long offset = 0;
+		long limit = Long.MAX_VALUE;
+		try
+		{
+			for (int i = 1; i < args.length; ++i)
+			{
+				if (args[i].equalsIgnoreCase("--cn") && i + 1 < args.length)
+					commonName = args[++i].toLowerCase(Locale.ENGLISH);
+				else if (args[i].equalsIgnoreCase("--expiringBefore") && i + 1 < args.length)
+					expiringBefore = new SimpleDateFormat("yyyy-MM-dd").parse(args[++i]);
+				else if (args[i].equalsIgnoreCase("--offset") && i + 1 < args.length)
+					offset = Long.parseLong(args[++i]);
+				else if (args[i].equalsIgnoreCase("--limit") && i + 1 < args.length)
+					limit = Long.parseLong(args[++i]);
+				else
+				{
+					System.out.println("Unknown option " + args[i]);
+					return;
+				}
+			}
+			
+			if (offset < 0 || limit < 0)
+				throw new IllegalArgumentException("--offset and --limit must not be negative");
+		}
+		catch (Exception e)
+		{
+			System.out.println("Invalid option value: " + e.getMessage());
+			return;
+		}
+		
 		try
 		{
 			final TrustBundle bundle = bundleService.getTrustBundle(bundleName);
@@ -404,14 +1628,65 @@ public class TrustBundleCommands
 				System.out.println("Bundle has not anchors.");
 				return;			
 			}
-			anchorPrinter.printRecords(anchors);
-
 			
+			// the filters are applied lazily while the printer pulls rows, so only the rows of the current batch are decoded and held
+			Stream<TrustBundleAnchor> rows = anchors.stream();
+			if (expiringBefore != null)
+			{
+				final Date horizon = expiringBefore;
+				rows = rows.filter(anchor -> isExpiringBefore(anchor, horizon));
+			}
+			
+			// the common name filter runs on the printer's decoded rows so that each anchor is decoded once
+			final int printed;
+			if (commonName != null)
+			{
+				final String text = commonName;
+				printed = anchorPrinter.printRecords(rows.iterator(), cn -> cn.toLowerCase(Locale.ENGLISH).contains(text), offset, limit, ANCHOR_PRINT_BATCH_SIZE);
+			}
+			else
+				printed = anchorPrinter.printRecords(rows.skip(offset).limit(limit).iterator(), ANCHOR_PRINT_BATCH_SIZE);
+			
+			if (printed == 0)
+				System.out.println("No matching anchors found.");
 		}
 		catch (Exception e)
 		{
-			System.out.println("Error deleting trust bundle: " + e.getMessage());
+			System.out.println("Error listing trust bundle anchors: " + e.getMessage());
 		}
 	}
 	
+	protected static boolean isExpiringBefore(TrustBundleAnchor anchor, Date horizon)
+	{
+		// the stored validity avoids decoding the certificate
+		if (anchor.getValidEndDate() != null)
+			return anchor.getValidEndDate().getTime().before(horizon);
+		
+		try
+		{
+			return anchor.getAsX509Certificate().getNotAfter().before(horizon);
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+	
+	protected static String getCommonName(TrustBundleAnchor anchor)
+	{
+		try
+		{
+			final X500Principal subject = anchor.getAsX509Certificate().getSubjectX500Principal();
+			for (Rdn rdn : new LdapName(subject.getName(X500Principal.RFC2253)).getRdns())
+				if (rdn.getType().equalsIgnoreCase("CN"))
+					return rdn.getValue().toString();
+		}
+		catch (Exception e)
+		{
+			// unparsable anchors have no common name
+		}
+		
+		return "";
+	}
+	
 }
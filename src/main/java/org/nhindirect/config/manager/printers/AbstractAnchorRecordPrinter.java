@@ -0,0 +1,209 @@
+package org.nhindirect.config.manager.printers;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.jce.PrincipalUtil;
+import org.bouncycastle.jce.X509Principal;
+import org.nhindirect.config.manager.ThumbprintService;
+
+/**
+ * Base printer for records that hold an anchor certificate.  Each record is decoded once per print into a view holding the
+ * certificate, its subject common name, and its thumbprint, and all columns of the row are rendered from that view.  Records
+ * are decoded and printed a batch at a time, which bounds the number of decoded certificates held at a time; large batches are
+ * decoded in parallel, and rows are still printed in order.  Records can also be filtered by common name from the same decoded
+ * view that is printed.
+ */
+public abstract class AbstractAnchorRecordPrinter<T> extends AbstractRecordPrinter<T>
+{
+	protected static final int PARALLEL_DECODE_THRESHOLD = 256;
+
+	protected static final int PRINT_BATCH_SIZE = 1024;
+
+	/**
+	 * Decoded views of the rows that are about to be printed, keyed by record identity.
+	 */
+	protected final Map<T, DecodedAnchor> decodedRows = new IdentityHashMap<T, DecodedAnchor>();
+
+	protected static class DecodedAnchor
+	{
+		protected X509Certificate cert;
+		protected String commonName;
+		protected String thumbprint;
+		protected Exception certError;
+		protected Exception commonNameError;
+	}
+
+	public AbstractAnchorRecordPrinter(int tableWidth, Collection<ReportColumn> reportColumns)
+	{
+		super(tableWidth, reportColumns);
+	}
+
+	protected abstract X509Certificate toX509Certificate(T record) throws Exception;
+
+	@Override
+	public void printRecords(Collection<T> records)
+	{
+		// the header is printed with the first batch, or on its own when there are no records
+		if (printRecords(records.iterator(), PRINT_BATCH_SIZE) == 0)
+			printHeader();
+	}
+
+	/**
+	 * Prints the records whose subject common name matches a filter.  Each record is decoded once: the view used to test the
+	 * common name is the one the row is printed from.
+	 * @param records The records to filter and print.
+	 * @param commonNameFilter The test applied to the subject common name.  Records without a common name are tested with an empty string.
+	 * @param offset The number of matching records to skip.
+	 * @param limit The maximum number of records to print.
+	 * @param batchSize The number of records decoded together.
+	 * @return The number of records printed.
+	 */
+	public int printRecords(Iterator<T> records, Predicate<String> commonNameFilter, long offset, long limit, int batchSize)
+	{
+		try
+		{
+			return printRecords(new CommonNameFilterIterator(records, commonNameFilter, offset, limit, batchSize), batchSize);
+		}
+		finally
+		{
+			// rows decoded past the limit are never printed
+			decodedRows.clear();
+		}
+	}
+
+	@Override
+	protected void printBatch(List<T> rows)
+	{
+		final List<T> undecoded = rows.stream().filter(row -> !decodedRows.containsKey(row)).collect(Collectors.toList());
+		final List<DecodedAnchor> decoded = decodeAll(undecoded);
+		for (int i = 0; i < undecoded.size(); ++i)
+			decodedRows.put(undecoded.get(i), decoded.get(i));
+
+		try
+		{
+			super.printBatch(rows);
+		}
+		finally
+		{
+			for (T row : rows)
+				decodedRows.remove(row);
+		}
+	}
+
+	protected List<DecodedAnchor> decodeAll(List<T> rows)
+	{
+		return (rows.size() < PARALLEL_DECODE_THRESHOLD) ?
+				rows.stream().map(this::decode).collect(Collectors.toList()) :
+				rows.parallelStream().map(this::decode).collect(Collectors.toList());
+	}
+
+	protected DecodedAnchor getDecodedAnchor(T record)
+	{
+		final DecodedAnchor retVal = decodedRows.get(record);
+
+		return (retVal == null) ? decode(record) : retVal;
+	}
+
+	/**
+	 * Decodes the source records a batch at a time and returns the ones whose common name matches, keeping their decoded views
+	 * for printing.
+	 */
+	protected class CommonNameFilterIterator implements Iterator<T>
+	{
+		protected final Iterator<T> source;
+		protected final Predicate<String> commonNameFilter;
+		protected final int batchSize;
+		protected final Deque<T> matches = new ArrayDeque<T>();
+		protected long skip;
+		protected long remaining;
+
+		protected CommonNameFilterIterator(Iterator<T> source, Predicate<String> commonNameFilter, long offset, long limit, int batchSize)
+		{
+			this.source = source;
+			this.commonNameFilter = commonNameFilter;
+			this.skip = offset;
+			this.remaining = limit;
+			this.batchSize = batchSize;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (remaining > 0 && matches.isEmpty() && source.hasNext())
+			{
+				final List<T> batch = new ArrayList<T>(batchSize);
+				while (batch.size() < batchSize && source.hasNext())
+					batch.add(source.next());
+
+				final List<DecodedAnchor> decoded = decodeAll(batch);
+				for (int i = 0; i < batch.size(); ++i)
+				{
+					final DecodedAnchor anchor = decoded.get(i);
+					if (!commonNameFilter.test((anchor.commonName == null) ? "" : anchor.commonName))
+						continue;
+
+					if (skip > 0)
+						--skip;
+					else if (matches.size() < remaining)
+					{
+						matches.add(batch.get(i));
+						decodedRows.put(batch.get(i), anchor);
+					}
+				}
+			}
+
+			return remaining > 0 && !matches.isEmpty();
+		}
+
+		@Override
+		public T next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			--remaining;
+			return matches.poll();
+		}
+	}
+
+	protected DecodedAnchor decode(T record)
+	{
+		final DecodedAnchor retVal = new DecodedAnchor();
+		try
+		{
+			retVal.cert = toX509Certificate(record);
+			retVal.thumbprint = ThumbprintService.getInstance().getThumbprint(retVal.cert);
+		}
+		catch (Exception e)
+		{
+			retVal.certError = e;
+			return retVal;
+		}
+
+		try
+		{
+			final X509Principal principal = PrincipalUtil.getSubjectX509Principal(retVal.cert);
+			final Vector<?> values = principal.getValues(X509Name.CN);
+			retVal.commonName = (String) values.get(0);
+		}
+		catch (Exception e)
+		{
+			retVal.commonNameError = e;
+		}
+
+		return retVal;
+	}
+}
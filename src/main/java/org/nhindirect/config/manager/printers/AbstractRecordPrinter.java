@@ -1,8 +1,16 @@
 package org.nhindirect.config.manager.printers;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 
 
 public abstract class AbstractRecordPrinter<T> implements RecordPrinter<T>
@@ -10,6 +18,11 @@ public abstract class AbstractRecordPrinter<T> implements RecordPrinter<T>
 	protected final Collection<ReportColumn> reportColumns;
 	protected final int tableWidth;
 	
+	/**
+	 * Writer of printed batches.  It wraps the console and is never closed.
+	 */
+	protected Writer batchWriter;
+	
 	protected static class ReportColumn
 	{
 		protected final String header;
@@ -45,7 +58,63 @@ public abstract class AbstractRecordPrinter<T> implements RecordPrinter<T>
 			printRecordInternal(record);
 	}
 	
+	/**
+	 * Prints records as they are read from an iterator.  Rows are formatted and written in batches, so the first rows are printed
+	 * before the iterator is exhausted.  The header is only printed if there is at least one record.
+	 * @param records The records to print.
+	 * @param batchSize The number of records printed together.
+	 * @return The number of records printed.
+	 */
+	public int printRecords(Iterator<T> records, int batchSize)
+	{
+		int retVal = 0;
+		final List<T> batch = new ArrayList<T>(batchSize);
+		while (records.hasNext())
+		{
+			batch.add(records.next());
+			if (batch.size() >= batchSize || !records.hasNext())
+			{
+				if (retVal == 0)
+					printHeader();
+				
+				printBatch(batch);
+				retVal += batch.size();
+				batch.clear();
+			}
+		}
+		
+		return retVal;
+	}
+	
+	/**
+	 * Formats a batch of rows and writes them to the console through a buffered writer that is flushed once per batch.
+	 */
+	protected void printBatch(List<T> rows)
+	{
+		if (batchWriter == null)
+			batchWriter = new BufferedWriter(new OutputStreamWriter(System.out));
+		
+		try
+		{
+			for (T row : rows)
+			{
+				batchWriter.write(formatRecord(row));
+				batchWriter.write(System.lineSeparator());
+			}
+			batchWriter.flush();
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+	
 	protected void printRecordInternal(T record)
+	{
+		System.out.println(formatRecord(record));
+	}
+	
+	protected String formatRecord(T record)
 	{
 		StringBuilder builder = new StringBuilder();
 		
@@ -70,7 +139,7 @@ public abstract class AbstractRecordPrinter<T> implements RecordPrinter<T>
 		for (int i = 0; i < tableWidth; ++i)
 			builder.append('-');
 		
-		System.out.println(builder.toString());
+		return builder.toString();
 	}
 	
 	protected String getColumnValue(ReportColumn column, T record)
@@ -90,6 +159,11 @@ public abstract class AbstractRecordPrinter<T> implements RecordPrinter<T>
 	}
 	
 	protected void printHeader()
+	{
+		System.out.println(formatHeader());
+	}
+	
+	protected String formatHeader()
 	{
 		StringBuilder builder = new StringBuilder();
 		
@@ -133,6 +207,6 @@ public abstract class AbstractRecordPrinter<T> implements RecordPrinter<T>
 		for (int i = 0; i < tableWidth; ++i)
 			builder.append('-');
 		
-		System.out.println(builder.toString());
+		return builder.toString();
 	}
 }
\ No newline at end of file
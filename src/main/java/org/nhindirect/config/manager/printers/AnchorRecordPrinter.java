@@ -3,16 +3,11 @@ package org.nhindirect.config.manager.printers;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Vector;
 
-import org.bouncycastle.asn1.x509.X509Name;
-import org.bouncycastle.jce.PrincipalUtil;
-import org.bouncycastle.jce.X509Principal;
-import org.nhindirect.common.cert.Thumbprint;
 import org.nhindirect.config.model.Anchor;
 import org.nhindirect.config.model.utils.CertUtils;
 
-public class AnchorRecordPrinter extends AbstractRecordPrinter<Anchor>
+public class AnchorRecordPrinter extends AbstractAnchorRecordPrinter<Anchor>
 {
 	
 	protected static final String ANCHOR_ID_COL = "ID";
@@ -41,22 +36,30 @@ public class AnchorRecordPrinter extends AbstractRecordPrinter<Anchor>
 		super(170, REPORT_COLS);
 	}
 	
+	@Override
+	protected X509Certificate toX509Certificate(Anchor record) throws Exception
+	{
+		return CertUtils.toX509Certificate(record.getCertificateData());
+	}
+	
 	@Override
 	protected String getColumnValue(ReportColumn column, Anchor record)
 	{
 		try
 		{
-			final X509Certificate anchor = CertUtils.toX509Certificate(record.getCertificateData());
+			final DecodedAnchor anchor = getDecodedAnchor(record);
+			if (anchor.certError != null)
+				throw anchor.certError;
+			
 			if (column.header.equals(ANCHOR_NAME_COL))
 			{
-				final X509Principal principal = PrincipalUtil.getSubjectX509Principal(anchor);
-				final Vector<?> values = principal.getValues(X509Name.CN);
-				final String cn = (String) values.get(0);
+				if (anchor.commonNameError != null)
+					throw anchor.commonNameError;
 				
-				return cn;
+				return anchor.commonName;
 			}
 			else if (column.header.equals(TP_NAME_COL))
-				return Thumbprint.toThumbprint(anchor).toString();
+				return anchor.thumbprint;
 			else if (column.header.equals(INCOMING_COL))
 				return 	Boolean.valueOf(record.isIncoming()).toString();
 			else if (column.header.equals(OUTGOING_COL))
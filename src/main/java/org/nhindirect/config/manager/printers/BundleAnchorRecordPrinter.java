@@ -5,15 +5,10 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Vector;
 
-import org.bouncycastle.asn1.x509.X509Name;
-import org.bouncycastle.jce.PrincipalUtil;
-import org.bouncycastle.jce.X509Principal;
 import org.nhindirect.config.model.TrustBundleAnchor;
-import org.nhindirect.stagent.cert.Thumbprint;
 
-public class BundleAnchorRecordPrinter extends AbstractRecordPrinter<TrustBundleAnchor>
+public class BundleAnchorRecordPrinter extends AbstractAnchorRecordPrinter<TrustBundleAnchor>
 {
 	protected static final String ANCHOR_NAME_COL = "Anchor Name";
 	protected static final String TP_NAME_COL = "Thumbprint";
@@ -40,22 +35,30 @@ public class BundleAnchorRecordPrinter extends AbstractRecordPrinter<TrustBundle
 		dtFormat = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss");
 	}
 	
+	@Override
+	protected X509Certificate toX509Certificate(TrustBundleAnchor record) throws Exception
+	{
+		return record.getAsX509Certificate();
+	}
+	
 	@Override
 	protected String getColumnValue(ReportColumn column, TrustBundleAnchor record)
 	{
 		try
 		{
-			final X509Certificate anchor = record.getAsX509Certificate();
+			final DecodedAnchor anchor = getDecodedAnchor(record);
+			if (anchor.certError != null)
+				throw anchor.certError;
+			
 			if (column.header.equals(ANCHOR_NAME_COL))
 			{
-				final X509Principal principal = PrincipalUtil.getSubjectX509Principal(anchor);
-				final Vector<?> values = principal.getValues(X509Name.CN);
-				final String cn = (String) values.get(0);
+				if (anchor.commonNameError != null)
+					throw anchor.commonNameError;
 				
-				return cn;
+				return anchor.commonName;
 			}
 			else if (column.header.equals(TP_NAME_COL))
-				return Thumbprint.toThumbprint(anchor).toString();
+				return anchor.thumbprint;
 			else if (column.header.equals(EXPIRES_COL))
 			{
 				return dtFormat.format(record.getValidEndDate().getTime());
@@ -0,0 +1,57 @@
+package org.nhindirect.config.manager.printers;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+
+import org.nhindirect.config.manager.CertChainValidation;
+
+public class CertChainValidationPrinter extends AbstractRecordPrinter<CertChainValidation>
+{
+	protected static final SimpleDateFormat dateFormatter;
+
+	protected static final String OWNER_COL = "Owner";
+	protected static final String TP_NAME_COL = "Thumbprint";
+	protected static final String STATUS_COL = "Status";
+	protected static final String EXPIRES_COL = "Chain Expires";
+	protected static final String DETAIL_COL = "Detail";
+
+	protected static final Collection<ReportColumn> REPORT_COLS;
+
+	static
+	{
+		REPORT_COLS = new ArrayList<ReportColumn>();
+
+		REPORT_COLS.add(new ReportColumn(OWNER_COL, 40, "Owner"));
+		REPORT_COLS.add(new ReportColumn(TP_NAME_COL, 44, "Thumbprint"));
+		REPORT_COLS.add(new ReportColumn(STATUS_COL, 12, "Status"));
+		REPORT_COLS.add(new ReportColumn(EXPIRES_COL, 15, "Expires"));
+		REPORT_COLS.add(new ReportColumn(DETAIL_COL, 59, "Detail"));
+
+		dateFormatter = new SimpleDateFormat("MMM d yyyy" , Locale.getDefault());
+	}
+
+	public CertChainValidationPrinter()
+	{
+		super(170, REPORT_COLS);
+	}
+
+	@Override
+	protected String getColumnValue(ReportColumn column, CertChainValidation result)
+	{
+		try
+		{
+			if (column.header.equals(EXPIRES_COL))
+				return (result.getExpires() == null) ? "" : dateFormatter.format(result.getExpires());
+			else if (column.header.equals(DETAIL_COL))
+				return (result.getDetail() == null) ? "" : result.getDetail();
+			else
+				return super.getColumnValue(column, result);
+		}
+		catch (Exception e)
+		{
+			return "ERROR: " + e.getMessage();
+		}
+	}
+}
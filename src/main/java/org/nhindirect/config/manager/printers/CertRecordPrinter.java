@@ -8,9 +8,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Locale;
 
+import org.nhindirect.config.manager.ThumbprintService;
 import org.nhindirect.config.model.Certificate;
 import org.nhindirect.config.model.exceptions.CertificateConversionException;
-import org.nhindirect.stagent.cert.Thumbprint;
 
 public class CertRecordPrinter extends AbstractRecordPrinter<Certificate>
 {
@@ -56,7 +56,7 @@ public class CertRecordPrinter extends AbstractRecordPrinter<Certificate>
 		try
 		{
 			cont = org.nhindirect.config.model.utils.CertUtils.toCertContainer(retCert.getData());
-			tpOrURL = Thumbprint.toThumbprint(cont.getCert()).toString();
+			tpOrURL = ThumbprintService.getInstance().getThumbprint(cont.getCert());
 		}
 		catch (CertificateConversionException e)
 		{
@@ -87,7 +87,7 @@ public class CertRecordPrinter extends AbstractRecordPrinter<Certificate>
 			else if (column.header.equals(RECORD_TYPE_COL))
 				return (isURL) ? "IPKIX" : "PKIX";			
 			else if (column.header.equals(TP_NAME_COL))
-				return isURL ? tpOrURL : Thumbprint.toThumbprint(cont.getCert()).toString();			
+				return isURL ? tpOrURL : ThumbprintService.getInstance().getThumbprint(cont.getCert());			
 			else if (column.header.equals(EXPIRES_COL))
 				return isURL ? "" : dateFormatter.format(cont.getCert().getNotAfter());	
 			else if (column.header.equals(PRIVATE_IND_COL))